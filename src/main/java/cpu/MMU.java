@@ -1,18 +1,22 @@
 package cpu;
 
-import memory.Disk;
+import memory.EventTrace;
 import memory.Memory;
 import memory.Memory.SegDescriptor;
 import memory.Memory.PageItem;
 import transformer.Transformer;
 
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
  * MMU接收一个48-bits的逻辑地址，并最终将其转换成32-bits的物理地址
  *
- * Memory.SEGMENT和Memory.PAGE标志用于表示是否开启分段和分页。
+ * Memory.SEGMENT和Memory.PAGE标志用于表示是否开启分段和分页(默认实例)，通过Memory#builder()构造的实例使用各自的模式。
  * 实际上在机器里从实模式进入保护模式后分段一定会保持开启(即使实模式也会使用段寄存器)，因此一共只要实现三种模式的内存管理即可：实模式、只有分段、段页式
  * 所有模式的物理地址都采用32-bits，实模式的物理地址高位补0
  *
@@ -26,18 +30,43 @@ import java.util.Arrays;
  * 			5.1 如果页不在内存，则将页从磁盘读取到内存
  * 		6. 页框号与页内偏移组合成物理地址，根据物理地址和数据长度读Cache
  * 	段页式系统中，逻辑地址仍然由段号+段内偏移组成；段内偏移可以看作是段中段一个页号和页偏移量——《操作系统》
+ *
+ * 段寄存器：与x86一样，装载段选择符时查询段表并解码段描述符，数值形式的基址和限长保存在段寄存器不可见的描述符缓存中，
+ * 	之后通过段寄存器访问不再查询段表和解析描述符中的字符串；按逻辑地址访问时相当于先把选择符装入DS(选择符相同时不重新装载)
+ * 	段描述符被换出、失效、清除或因碎片整理而移动时版本号改变，下次通过段寄存器访问时重新装载
+ * 	分段模式下访问按缓存的限长检查，越界时抛出IndexOutOfBoundsException
  */
 public class MMU {
 
-	private static MMU mmuInstance = new MMU();
+	private static MMU mmuInstance = new MMU(Memory.getMemory());
 
-	private MMU() {}
+	/**
+	 * @param memory MMU所管理的内存系统实例，见Memory#builder()
+	 */
+	public MMU(Memory memory) {
+		this.memory = memory;
+	}
 
 	public static MMU getMMU() {
 		return mmuInstance;
 	}
 
-	Memory memory = Memory.getMemory();
+	public Memory getMemory() {
+		return memory;
+	}
+
+	private final Memory memory;
+
+	/**
+	 * 段寄存器
+	 */
+	public enum SegmentRegister {
+		CS, DS, SS, ES, FS, GS
+	}
+
+	private final AtomicReferenceArray<HiddenDescriptor> registers = new AtomicReferenceArray<>(SegmentRegister.values().length);
+
+	private final AtomicLong descriptorLoads = new AtomicLong();    // 查询段表并解码段描述符的次数
 
 	Transformer t = new Transformer();
 
@@ -48,49 +77,307 @@ public class MMU {
 	 * @return 内存中的数据
 	 */
 	public char[] read(String logicAddr, int length) {
-		String linearAddr;          // 32位线性地址
-		String physicalAddr = "";   // 32位物理地址
-		// TODO 加载数据 + 地址转换
+		// 实模式下
+		if (!memory.isPage() && !memory.isSegment()){
+			return memory.read(logicAddr.substring(16), length);
+		}
+
+		HiddenDescriptor descriptor = select(logicAddr);
+		return read(descriptor, Integer.parseInt(t.binaryToInt(logicAddr.substring(16))), length);
+	}
+
+	/**
+	 * 通过段寄存器读取，段寄存器需要先由loadSegment装载
+	 *
+	 * @param register 段寄存器
+	 * @param offset   32-bits段内偏移
+	 * @param length   读取数据的长度
+	 * @return 内存中的数据
+	 */
+	public char[] read(SegmentRegister register, String offset, int length) {
+		if (!memory.isPage() && !memory.isSegment()){
+			return memory.read(offset, length);
+		}
+		return read(hidden(register), Integer.parseInt(t.binaryToInt(offset)), length);
+	}
+
+	private char[] read(HiddenDescriptor descriptor, int offset, int length) {
+		long begin = EventTrace.begin();
+		char[] data;
+		// 分段模式下
+		if (!memory.isPage()){
+			data = readSegment(descriptor, offset, length);
+		}
+
+		// 段页式模式下
+		else {
+			data = new char[length];
+			readPages(descriptor.index, virtualAddr(descriptor, offset), data, 0, length, false);
+		}
+		EventTrace.emit(EventTrace.Type.TRANSLATE, descriptor.index, offset, length, begin);
+		return data;
+	}
+
+	/**
+	 * 装载段寄存器：查询段表，解码段描述符并保存在段寄存器的描述符缓存中
+	 *
+	 * @param register 段寄存器
+	 * @param selector 16-bits段选择符，高13-bits为段描述符的索引
+	 */
+	public void loadSegment(SegmentRegister register, String selector) {
+		registers.set(register.ordinal(), decode(Integer.parseInt(t.binaryToInt(selector.substring(0, 13)))));
+	}
+
+	/**
+	 * @return 段寄存器缓存的段基址，描述符已过期时先重新装载
+	 */
+	public int getSegmentBase(SegmentRegister register) {
+		return hidden(register).base;
+	}
+
+	/**
+	 * @return 段寄存器缓存的段限长，描述符已过期时先重新装载
+	 */
+	public int getSegmentLimit(SegmentRegister register) {
+		return hidden(register).limit;
+	}
+
+	/**
+	 * @return 查询段表并解码段描述符的次数，包括显式装载和描述符过期后的重新装载
+	 */
+	public long getDescriptorLoads() {
+		return descriptorLoads.get();
+	}
 
+	/**
+	 * 按逻辑地址写主存，与Memory#write一样只修改主存，不写回磁盘
+	 * 段页式下逐页写入，映射到共享零页框的页先分配私有页框
+	 *
+	 * @param logicAddr 48-bits逻辑地址
+	 * @param length    写入数据的长度
+	 * @param data      写入的数据
+	 */
+	public void write(String logicAddr, int length, char[] data) {
 		// 实模式下
-		if (!Memory.PAGE && !Memory.SEGMENT){
-			physicalAddr = logicAddr.substring(16);
+		if (!memory.isPage() && !memory.isSegment()){
+			memory.write(logicAddr.substring(16), length, data);
+			return;
 		}
 
+		HiddenDescriptor descriptor = select(logicAddr);
+		int descriptorIndex = descriptor.index;
+		int offset = Integer.parseInt(t.binaryToInt(logicAddr.substring(16)));
+
 		// 分段模式下
-		else if (!Memory.PAGE){
-			int descriptorIndex = Integer.parseInt(t.binaryToInt(logicAddr.substring(0, 13)));
-			SegDescriptor descriptor = Memory.segTbl.get(descriptorIndex);
-			String diskBase = String.valueOf(descriptor.getDisk());
-			physicalAddr = diskBase;
-			if (!descriptor.isValidBit()){
-				int l = Integer.parseInt(t.binaryToInt(String.valueOf(descriptor.getLimit())));
-				char[] seg = Disk.getDisk().read(diskBase, l);
-				memory.write(physicalAddr, l, seg);
+		if (!memory.isPage()){
+			checkLimit(current(descriptor), offset, length);
+			synchronized (memory) {
+				memory.loadForWrite(descriptorIndex, offset, length);
+				// 段可能在加载时被分配到新的内存区间
+				descriptor = current(descriptor);
+				memory.write((long) descriptor.base + offset, length, data);
 			}
+			return;
 		}
 
 		// 段页式模式下
-		else {
+		int pageSize = memory.getPageSize();
+		long vAddr = virtualAddr(descriptor, offset);
+		int done = 0;
+		while (done < length) {
+			int vPageNO = (int) ((vAddr + done) / pageSize);
+			int pageOffset = (int) ((vAddr + done) % pageSize);
+			int n = Math.min(pageSize - pageOffset, length - done);
+			synchronized (memory) {
+				int frameNO = memory.loadPageForWrite(descriptorIndex, vPageNO);
+				memory.write((long) frameNO * pageSize + pageOffset, n, Arrays.copyOfRange(data, done, done + n));
+			}
+			done += n;
+		}
+	}
+
+	/**
+	 * 流式读取：按页(段页式)或按块(分段、实模式)依次返回数据片段，每个片段在被取出时才加载，
+	 * 段页式下由本次读取换入的页在复制出数据后立即释放，因此无论读取多长，占用的页框和堆内存都保持在一个片段左右
+	 *
+	 * @param logicAddr 48-bits逻辑地址
+	 * @param length    读取数据的总长度
+	 * @return 数据片段的迭代器，片段按地址顺序排列，总长度为length
+	 */
+	public Iterator<char[]> readStream(String logicAddr, int length) {
+		final boolean paged = memory.isPage();
+		final boolean segmented = memory.isSegment();
+		final HiddenDescriptor descriptor = segmented ? select(logicAddr) : null;
+		final long offset = Long.parseLong(logicAddr.substring(16), 2);
+		// 段页式下片段在虚存地址空间内连续，其余模式下在段内偏移(实模式为物理地址)上连续
+		final long start = paged ? virtualAddr(descriptor, (int) offset) : offset;
+		final int sliceSize = paged ? memory.getPageSize() : segmented ? Memory.SEG_CHUNK_SIZE_B : Memory.REAL_CHUNK_SIZE_B;
 
-			// 通过段号查询段
-			int descriptorIndex = Integer.parseInt(t.binaryToInt(logicAddr.substring(0, 13)));
-			SegDescriptor descriptor = Memory.segTbl.get(descriptorIndex);
+		return new Iterator<char[]>() {
+
+			private int done = 0;
+
+			@Override
+			public boolean hasNext() {
+				return done < length;
+			}
+
+			@Override
+			public char[] next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				long addr = start + done;
+				// 片段在sliceSize边界处结束，段页式下即页边界
+				int n = (int) Math.min(sliceSize - addr % sliceSize, length - done);
+				char[] slice;
+				if (paged) {
+					slice = new char[n];
+					readPages(descriptor.index, addr, slice, 0, n, true);
+				} else if (segmented) {
+					slice = readSegment(descriptor, (int) addr, n);
+				} else {
+					slice = memory.read(addr, n);
+				}
+				done += n;
+				return slice;
+			}
+		};
+	}
+
+	/**
+	 * 分段模式下读取段内[offset, offset + length)
+	 */
+	private char[] readSegment(HiddenDescriptor descriptor, int offset, int length) {
+		descriptor = current(descriptor);
+		checkLimit(descriptor, offset, length);
+		// 描述符缓存仍有效且段在内存中时Memory直接使用缓存的基址；段不在内存时分配内存区间并加载，段基址在加载后才确定
+		// 加载和读取在同一把锁内完成，避免并发访问时段在两步之间被换出或因碎片整理而移动
+		return memory.readSegment(descriptor.index, descriptor.descriptor, descriptor.version, descriptor.base, offset, length);
+	}
 
-			// 段的基址+段内偏移得到线性地址
-			int base = Integer.parseInt(t.binaryToInt(String.valueOf(descriptor.getBase())));
-			int offset = Integer.parseInt(t.binaryToInt(logicAddr.substring(16)));
-			linearAddr = t.intToBinary(String.valueOf(base+offset));
+	/**
+	 * 分段模式下访问不能超出段限长
+	 * 段页式下段内偏移的高20位是虚页号，限长只用于计算页框配额，不检查
+	 */
+	private void checkLimit(HiddenDescriptor descriptor, int offset, int length) {
+		if (offset < 0 || length < 0 || (long) offset + length > descriptor.limit) {
+			throw new IndexOutOfBoundsException("段内偏移越界: 段" + descriptor.index + " [" + offset + ", " + ((long) offset + length) + ") 限长" + descriptor.limit);
+		}
+	}
 
-			// 线性地址前20位为页号，后12位为页内偏移
-			int pageNum = Integer.parseInt(t.binaryToInt(linearAddr.substring(0, 20)));
-			int offset2 = Integer.parseInt(t.binaryToInt(linearAddr.substring(20)));
+	/**
+	 * 段页式下由段内偏移计算虚存地址
+	 * 段的基址+段内偏移得到32位线性地址，线性地址前20位为页号，后12位为页内偏移，虚存地址 = 虚页号 * 页大小 + 偏移量 = 磁盘地址
+	 */
+	private long virtualAddr(HiddenDescriptor descriptor, int offset) {
+		int linearAddr = current(descriptor).base + offset;
+		return (long) (linearAddr >>> 12) * memory.getPageSize() + (linearAddr & 0xFFF);
+	}
 
-			char[] data = Disk.getDisk().read(t.intToBinary(String.valueOf(pageNum * 1024 + offset2)), length);
-			memory.write(physicalAddr, length, data);
+	/**
+	 * 按逻辑地址访问时的隐式段寄存器装载：选择符与DS中的相同且描述符未过期时直接使用，否则装入DS
+	 */
+	private HiddenDescriptor select(String logicAddr) {
+		int index = Integer.parseInt(t.binaryToInt(logicAddr.substring(0, 13)));
+		HiddenDescriptor descriptor = registers.get(SegmentRegister.DS.ordinal());
+		if (descriptor != null && descriptor.index == index && descriptor.isCurrent()) {
+			return descriptor;
+		}
+		descriptor = decode(index);
+		registers.set(SegmentRegister.DS.ordinal(), descriptor);
+		return descriptor;
+	}
 
+	/**
+	 * @return 段寄存器的描述符缓存，已过期时重新装载
+	 */
+	private HiddenDescriptor hidden(SegmentRegister register) {
+		HiddenDescriptor descriptor = registers.get(register.ordinal());
+		if (descriptor == null) {
+			throw new IllegalStateException("段寄存器尚未装载: " + register);
+		}
+		HiddenDescriptor fresh = current(descriptor);
+		if (fresh != descriptor) {
+			registers.compareAndSet(register.ordinal(), descriptor, fresh);
+		}
+		return fresh;
+	}
+
+	private HiddenDescriptor current(HiddenDescriptor descriptor) {
+		return descriptor.isCurrent() ? descriptor : decode(descriptor.index);
+	}
+
+	private HiddenDescriptor decode(int index) {
+		SegDescriptor descriptor = memory.getSegDescriptor(index);
+		// 先读版本号，解码期间描述符被修改时版本号不一致，下次访问重新装载
+		int version = descriptor.getVersion();
+		int base = descriptor.baseValue();
+		int limit = descriptor.limitValue();
+		descriptorLoads.incrementAndGet();
+		return new HiddenDescriptor(index, descriptor, version, base, limit);
+	}
+
+	/**
+	 * 段寄存器不可见的描述符缓存，装载后不再修改，过期时整体替换
+	 */
+	private static class HiddenDescriptor {
+
+		private final int index;
+
+		private final SegDescriptor descriptor;
+
+		private final int version;
+
+		private final int base;
+
+		private final int limit;
+
+		HiddenDescriptor(int index, SegDescriptor descriptor, int version, int base, int limit) {
+			this.index = index;
+			this.descriptor = descriptor;
+			this.version = version;
+			this.base = base;
+			this.limit = limit;
+		}
+
+		boolean isCurrent() {
+			return descriptor.getVersion() == version;
+		}
+	}
+
+	/**
+	 * 段页式下读取虚存地址[vAddr, vAddr + length)到dest，一次读取可以跨越段内多个页
+	 * 每次最多取Memory.FAULT_BATCH_PAGES页交给Memory#loadPages，其中连续缺失的页合并成一次磁盘读，加载后在同一把锁内拼接
+	 *
+	 * @param dropBehind 为true时，读取前不在内存的页在复制出数据后立即释放
+	 */
+	private void readPages(int descriptorIndex, long vAddr, char[] dest, int destPos, int length, boolean dropBehind) {
+		int pageSize = memory.getPageSize();
+		int firstVPageNO = (int) (vAddr / pageSize);
+		int pages = (int) ((vAddr + length - 1) / pageSize) - firstVPageNO + 1;
+		int[] frames = new int[Math.min(pages, Memory.FAULT_BATCH_PAGES)];
+		boolean[] resident = new boolean[frames.length];
+		int done = 0;
+		for (int page = 0; page < pages; ) {
+			int count = Math.min(pages - page, frames.length);
+			synchronized (memory) {
+				for (int i = 0; dropBehind && i < count; i++) {
+					resident[i] = memory.isPageResident(firstVPageNO + page + i);
+				}
+				int loaded = memory.loadPages(descriptorIndex, firstVPageNO + page, count, frames);
+				for (int i = 0; i < loaded; i++) {
+					int pageOffset = (int) ((vAddr + done) % pageSize);
+					int n = Math.min(pageSize - pageOffset, length - done);
+					System.arraycopy(memory.read((long) frames[i] * pageSize + pageOffset, n), 0, dest, destPos + done, n);
+					if (dropBehind && !resident[i]) {
+						memory.releasePage(firstVPageNO + page + i);
+					}
+					done += n;
+				}
+				page += loaded;
+			}
 		}
-		return memory.read(physicalAddr, length);
 	}
 
 }
@@ -0,0 +1,208 @@
+package driver;
+
+import cpu.MMU;
+import memory.DiskCostModel;
+import memory.EventTrace;
+import memory.Memory;
+import transformer.Transformer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 并发负载驱动，用虚拟线程模拟大量相互独立的逻辑进程
+ *
+ * 每个进程绑定一个段(进程号 % 段数)，按访问模式生成段内偏移，循环调用MMU#read访问共享的Memory/Disk，
+ * 记录每次访问的延迟，结束后汇总吞吐量、缺页(缺段)次数和尾延迟
+ *
+ * 注意：Memory以自身为锁串行化加载和读取，虚拟线程在锁内做磁盘I/O时会占住载体线程，
+ * 因此进程数增大时吞吐量主要反映锁竞争和缺页代价，而不是线程调度开销
+ */
+public class LoadDriver {
+
+	/**
+	 * 段内访问模式
+	 */
+	public enum Pattern {
+		SEQUENTIAL,     // 从随机位置开始顺序读
+		UNIFORM,        // 段内均匀随机
+		HOTSPOT         // 90%的访问落在段的前10%
+	}
+
+	public static int SEG_COUNT = 16;
+
+	public static int SEG_SIZE_B = 1024 * 1024;      // 每段 1 MB
+
+	private final MMU mmu;
+
+	private final int processes;
+
+	private final int accessesPerProcess;
+
+	private final int readLen;
+
+	private final Pattern pattern;
+
+	private final long seed;
+
+	public LoadDriver(MMU mmu, int processes, int accessesPerProcess, int readLen, Pattern pattern, long seed) {
+		this.mmu = mmu;
+		this.processes = processes;
+		this.accessesPerProcess = accessesPerProcess;
+		this.readLen = readLen;
+		this.pattern = pattern;
+		this.seed = seed;
+	}
+
+	/**
+	 * 按内存系统的工作模式重建段表
+	 * 分段模式下第k段的磁盘基址为 k * SEG_SIZE_B；段页式下各段基址为0，第k段覆盖磁盘[k * SEG_SIZE_B, (k + 1) * SEG_SIZE_B)
+	 */
+	public static void setUp(Memory memory) {
+		Transformer t = new Transformer();
+		memory.clear();
+		memory.resetFaultCounters();
+		if (!memory.isSegment()) {
+			return;
+		}
+		for (int segNO = 0; segNO < SEG_COUNT; segNO++) {
+			String diskBase = memory.isPage() ? "" : t.intToBinary(String.valueOf(segNO * SEG_SIZE_B));
+			memory.alloc_seg_force(segNO, "00000000000000000000000000000000", SEG_SIZE_B, false, diskBase);
+		}
+	}
+
+	public LoadReport run() {
+		Memory memory = mmu.getMemory();
+		long[][] latencies = new long[processes][];
+		long faultsBefore = memory.getTotalPageFaults() + memory.getTotalSegmentFaults();
+		DiskCostModel costModel = memory.getDisk().getCostModel();
+		long simulatedBefore = costModel == null ? 0L : costModel.getSimulatedNanos();
+		long start = System.nanoTime();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			List<Future<long[]>> futures = new ArrayList<>();
+			for (int pid = 0; pid < processes; pid++) {
+				final int id = pid;
+				futures.add(executor.submit(() -> runProcess(id)));
+			}
+			// 逐个取回结果，进程抛出的异常原样抛给调用者
+			for (int pid = 0; pid < processes; pid++) {
+				try {
+					latencies[pid] = futures.get(pid).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					throw new IllegalStateException("进程运行失败: " + pid, e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("等待进程时被中断", e);
+				}
+			}
+		}
+		long wallNanos = System.nanoTime() - start;
+		long faults = memory.getTotalPageFaults() + memory.getTotalSegmentFaults() - faultsBefore;
+		long simulatedNanos = costModel == null ? -1L : costModel.getSimulatedNanos() - simulatedBefore;
+
+		long[] all = new long[processes * accessesPerProcess];
+		for (int pid = 0; pid < processes; pid++) {
+			System.arraycopy(latencies[pid], 0, all, pid * accessesPerProcess, accessesPerProcess);
+		}
+		Arrays.sort(all);
+		return new LoadReport(processes, all, wallNanos, faults, simulatedNanos);
+	}
+
+	/**
+	 * 单个逻辑进程的访问循环
+	 *
+	 * @return 每次访问的延迟(纳秒)
+	 */
+	private long[] runProcess(int pid) {
+		Random random = new Random(seed + pid);
+		int segNO = mmu.getMemory().isSegment() ? pid % SEG_COUNT : 0;
+		int span = SEG_SIZE_B - readLen;
+		int pos = random.nextInt(span);
+		long[] latency = new long[accessesPerProcess];
+		for (int i = 0; i < accessesPerProcess; i++) {
+			switch (pattern) {
+				case SEQUENTIAL:
+					pos = (pos + readLen) % span;
+					break;
+				case UNIFORM:
+					pos = random.nextInt(span);
+					break;
+				case HOTSPOT:
+					pos = random.nextInt(10) < 9 ? random.nextInt(Math.max(1, span / 10)) : random.nextInt(span);
+					break;
+			}
+			String logicAddr = logicAddr(mmu.getMemory(), segNO, pos);
+			long begin = System.nanoTime();
+			mmu.read(logicAddr, readLen);
+			latency[i] = System.nanoTime() - begin;
+		}
+		return latency;
+	}
+
+	/**
+	 * @param pos 段内位置，段页式下换算成 虚页号(高20位) + 页内偏移(低12位) 的段内偏移
+	 * @return 48位逻辑地址
+	 */
+	static String logicAddr(Memory memory, int segNO, int pos) {
+		Transformer t = new Transformer();
+		String selector = t.intToBinary(String.valueOf(segNO)).substring(19) + "000";
+		int offset = pos;
+		if (memory.isSegment() && memory.isPage()) {
+			int diskAddr = segNO * SEG_SIZE_B + pos;
+			offset = (diskAddr / memory.getPageSize()) << 12 | diskAddr % memory.getPageSize();
+		}
+		return selector + t.intToBinary(String.valueOf(offset));
+	}
+
+	/**
+	 * 参数：[real|seg|ps] [每个进程的访问次数] [SEQUENTIAL|UNIFORM|HOTSPOT] [none|hdd|nvme]
+	 * 依次以1、10、100、1000、10000个进程运行并打印报告，指定磁盘类型时同时报告模拟的磁盘时间(不休眠)
+	 */
+	public static void main(String[] args) {
+		String mode = args.length > 0 ? args[0] : "ps";
+		int accesses = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		Pattern pattern = args.length > 2 ? Pattern.valueOf(args[2]) : Pattern.HOTSPOT;
+		String device = args.length > 3 ? args[3] : "none";
+		MMU mmu = new MMU(Memory.builder().segment(!mode.equals("real")).page(mode.equals("ps")).build());
+		if (!device.equals("none")) {
+			DiskCostModel.Profile profile = device.equals("hdd") ? DiskCostModel.Profile.HDD : DiskCostModel.Profile.NVME;
+			mmu.getMemory().getDisk().enableCostModel(profile, DiskCostModel.Mode.SIMULATE);
+		}
+
+		// -Dtrace.file=路径：运行期间开启事件跟踪，结束后转储，用driver.TraceReader查看
+		String traceFile = System.getProperty("trace.file");
+		if (traceFile != null) {
+			EventTrace.start();
+		}
+
+		System.out.println("mode=" + mode + " accesses/process=" + accesses + " pattern=" + pattern + " disk=" + device);
+		System.out.println(LoadReport.header());
+		for (int n = 1; n <= 10000; n *= 10) {
+			setUp(mmu.getMemory());
+			System.out.println(new LoadDriver(mmu, n, accesses, 128, pattern, 2019L).run());
+		}
+
+		if (traceFile != null) {
+			try {
+				System.out.println("trace: " + EventTrace.stop().dump(Paths.get(traceFile)) + " events -> " + traceFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package driver;
+
+/**
+ * 一次负载运行的汇总结果
+ */
+public class LoadReport {
+
+	private final int processes;
+
+	private final long accesses;
+
+	private final long wallNanos;
+
+	private final long faults;
+
+	private final long simulatedNanos;     // 磁盘时间模型给出的模拟时间，未开启时间模型时为-1
+
+	private final long[] sortedLatencies;   // 全部访问的延迟(纳秒)，已排序
+
+	LoadReport(int processes, long[] sortedLatencies, long wallNanos, long faults, long simulatedNanos) {
+		this.processes = processes;
+		this.accesses = sortedLatencies.length;
+		this.sortedLatencies = sortedLatencies;
+		this.wallNanos = wallNanos;
+		this.faults = faults;
+		this.simulatedNanos = simulatedNanos;
+	}
+
+	public int getProcesses() {
+		return processes;
+	}
+
+	public long getAccesses() {
+		return accesses;
+	}
+
+	public long getFaults() {
+		return faults;
+	}
+
+	public long getWallNanos() {
+		return wallNanos;
+	}
+
+	/**
+	 * @return 本次运行中磁盘的模拟时间(纳秒)，未开启时间模型时为-1
+	 */
+	public long getSimulatedNanos() {
+		return simulatedNanos;
+	}
+
+	/**
+	 * @return 每秒完成的MMU#read次数
+	 */
+	public double getThroughput() {
+		return wallNanos == 0 ? 0.0 : accesses * 1e9 / wallNanos;
+	}
+
+	/**
+	 * @return 缺页(段页式)或缺段(分段)次数占访问次数的比例
+	 */
+	public double getFaultRate() {
+		return accesses == 0 ? 0.0 : (double) faults / accesses;
+	}
+
+	/**
+	 * @param p 百分位，取值(0, 100]
+	 * @return 对应百分位的延迟(纳秒)
+	 */
+	public long getLatency(double p) {
+		if (accesses == 0) {
+			return 0L;
+		}
+		int index = (int) Math.ceil(p / 100 * accesses) - 1;
+		return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+	}
+
+	public static String header() {
+		return String.format("%8s %10s %12s %8s %10s %10s %10s %10s %10s %10s",
+				"procs", "accesses", "ops/s", "faults%", "p50(us)", "p99(us)", "p99.9(us)", "max(us)", "wall(ms)", "sim(ms)");
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%8d %10d %12.0f %8.3f %10.1f %10.1f %10.1f %10.1f %10.1f %10s",
+				processes, accesses, getThroughput(), getFaultRate() * 100,
+				getLatency(50) / 1e3, getLatency(99) / 1e3, getLatency(99.9) / 1e3, getLatency(100) / 1e3,
+				wallNanos / 1e6, simulatedNanos < 0 ? "-" : String.format("%.1f", simulatedNanos / 1e6));
+	}
+
+}
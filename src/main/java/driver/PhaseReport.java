@@ -0,0 +1,70 @@
+package driver;
+
+/**
+ * 合成访问流中一个阶段的汇总结果
+ */
+public class PhaseReport {
+
+	private final String phase;
+
+	private final long accesses;
+
+	private final long faults;
+
+	private final long diskBytes;
+
+	private final long wallNanos;
+
+	PhaseReport(String phase, long accesses, long faults, long diskBytes, long wallNanos) {
+		this.phase = phase;
+		this.accesses = accesses;
+		this.faults = faults;
+		this.diskBytes = diskBytes;
+		this.wallNanos = wallNanos;
+	}
+
+	public String getPhase() {
+		return phase;
+	}
+
+	public long getAccesses() {
+		return accesses;
+	}
+
+	public long getFaults() {
+		return faults;
+	}
+
+	/**
+	 * @return 本阶段块缓存之下实际从磁盘读取的字节数
+	 */
+	public long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/**
+	 * @return 缺页(段页式)或缺段(分段)次数占访问次数的比例
+	 */
+	public double getFaultRate() {
+		return accesses == 0 ? 0.0 : (double) faults / accesses;
+	}
+
+	/**
+	 * @return 每秒完成的MMU#read次数
+	 */
+	public double getThroughput() {
+		return wallNanos == 0 ? 0.0 : accesses * 1e9 / wallNanos;
+	}
+
+	public static String header() {
+		return String.format("%-24s %10s %10s %8s %12s %12s",
+				"phase", "accesses", "faults", "faults%", "disk(KB)", "ops/s");
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%-24s %10d %10d %8.3f %12d %12.0f",
+				phase, accesses, faults, getFaultRate() * 100, diskBytes / 1024, getThroughput());
+	}
+
+}
@@ -0,0 +1,109 @@
+package driver;
+
+import memory.EventTrace;
+import memory.EventTrace.Event;
+import memory.EventTrace.Type;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 读取EventTrace#dump写出的跟踪文件，打印时间线和按段的汇总
+ *
+ * 时间线按事件开始时间排序，时间相对于第一条事件(微秒)；汇总按段统计地址转换、缺页缺段和换出次数以及转换耗时，
+ * 磁盘读写和碎片整理与段无关，单独汇总
+ */
+public class TraceReader {
+
+	/**
+	 * 时间线，每行一条事件
+	 *
+	 * @param limit 最多输出的行数
+	 */
+	static String timeline(List<Event> events, int limit) {
+		List<Event> sorted = new ArrayList<>(events);
+		sorted.sort(Comparator.comparingLong(Event::getTimestamp));
+		StringBuilder sb = new StringBuilder(String.format("%12s %-14s %6s %12s %12s %10s%n", "time(us)", "event", "seg", "a", "b", "dur(us)"));
+		long origin = sorted.isEmpty() ? 0L : sorted.get(0).getTimestamp();
+		for (int i = 0; i < sorted.size() && i < limit; i++) {
+			Event event = sorted.get(i);
+			sb.append(String.format("%12.1f %-14s %6s %12d %12d %10.1f%n",
+					(event.getTimestamp() - origin) / 1e3, event.getType(), event.getSegNO() < 0 ? "-" : String.valueOf(event.getSegNO()),
+					event.getA(), event.getB(), event.getDuration() / 1e3));
+		}
+		if (sorted.size() > limit) {
+			sb.append(String.format("... %d more%n", sorted.size() - limit));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 按段汇总，最后一行为与段无关的磁盘和碎片整理事件
+	 */
+	static String summary(List<Event> events) {
+		Map<Integer, long[]> segments = new TreeMap<>();     // 段号 -> 各类型事件数，最后两项为转换总耗时和最大耗时
+		long diskReads = 0L, diskReadBytes = 0L, diskReadNanos = 0L;
+		long diskWrites = 0L, diskWriteBytes = 0L;
+		long compactions = 0L, compactedBytes = 0L;
+		for (Event event : events) {
+			switch (event.getType()) {
+				case DISK_READ:
+					diskReads++;
+					diskReadBytes += event.getB();
+					diskReadNanos += event.getDuration();
+					continue;
+				case DISK_WRITE:
+					diskWrites++;
+					diskWriteBytes += event.getB();
+					continue;
+				case COMPACT:
+					compactions++;
+					compactedBytes += event.getA();
+					continue;
+				default:
+					break;
+			}
+			long[] counts = segments.computeIfAbsent(event.getSegNO(), k -> new long[Type.values().length + 2]);
+			counts[event.getType().ordinal()]++;
+			if (event.getType() == Type.TRANSLATE) {
+				counts[Type.values().length] += event.getDuration();
+				counts[Type.values().length + 1] = Math.max(counts[Type.values().length + 1], event.getDuration());
+			}
+		}
+		StringBuilder sb = new StringBuilder(String.format("%6s %10s %10s %10s %10s %10s %12s %12s%n",
+				"seg", "translate", "pageFault", "segFault", "evictPage", "evictSeg", "avg(us)", "max(us)"));
+		for (Map.Entry<Integer, long[]> entry : segments.entrySet()) {
+			long[] counts = entry.getValue();
+			long translations = counts[Type.TRANSLATE.ordinal()];
+			sb.append(String.format("%6s %10d %10d %10d %10d %10d %12.1f %12.1f%n",
+					entry.getKey() < 0 ? "-" : String.valueOf(entry.getKey()), translations,
+					counts[Type.PAGE_FAULT.ordinal()], counts[Type.SEGMENT_FAULT.ordinal()],
+					counts[Type.EVICT_FRAME.ordinal()], counts[Type.EVICT_SEGMENT.ordinal()],
+					translations == 0 ? 0.0 : counts[Type.values().length] / 1e3 / translations, counts[Type.values().length + 1] / 1e3));
+		}
+		sb.append(String.format("disk reads=%d bytes=%d avg(us)=%.1f, writes=%d bytes=%d, compactions=%d moved=%d%n",
+				diskReads, diskReadBytes, diskReads == 0 ? 0.0 : diskReadNanos / 1e3 / diskReads, diskWrites, diskWriteBytes, compactions, compactedBytes));
+		return sb.toString();
+	}
+
+	/**
+	 * 参数：跟踪文件 [summary|timeline] [时间线最多行数]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("usage: TraceReader <trace file> [summary|timeline] [limit]");
+			return;
+		}
+		List<Event> events = EventTrace.read(Paths.get(args[0]));
+		String view = args.length > 1 ? args[1] : "summary";
+		int limit = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		System.out.println(events.size() + " events");
+		System.out.print(view.equals("timeline") ? timeline(events, limit) : summary(events));
+	}
+
+}
@@ -0,0 +1,243 @@
+package driver;
+
+import cpu.MMU;
+import memory.Disk;
+import memory.Memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 合成访问流生成器，按阶段依次产生逻辑地址并顺序调用MMU#read
+ *
+ * 地址空间为LoadDriver.setUp建立的SEG_COUNT个段首尾相接，每次访问读取readLen字节且不跨越段尾
+ * 每个阶段有自己的访问分布，阶段之间切换时工作集随之改变，用来观察替换策略对访问模式变化的反应
+ * 同一个种子产生的访问序列完全相同
+ */
+public class WorkloadGenerator {
+
+	/**
+	 * 阶段内的访问分布
+	 */
+	public enum Distribution {
+		UNIFORM,        // 全部地址空间均匀随机
+		ZIPF,           // 按readLen划分成若干项，第k热的项被访问的概率正比于 1 / k^skew，热项随机分布在地址空间中
+		SEQUENTIAL,     // 从随机位置开始顺序扫描
+		STRIDED,        // 从随机位置开始按固定步长前进
+		LOOPING         // 在随机位置开始的固定窗口内反复顺序扫描
+	}
+
+	/**
+	 * 一个阶段：访问分布、访问次数和分布参数
+	 */
+	public static class Phase {
+
+		private final Distribution distribution;
+
+		private final int accesses;
+
+		private final double param;     // ZIPF为skew，STRIDED为步长(字节)，LOOPING为窗口大小(字节)，其余分布不使用
+
+		public Phase(Distribution distribution, int accesses, double param) {
+			this.distribution = distribution;
+			this.accesses = accesses;
+			this.param = param;
+		}
+
+		/**
+		 * @param spec 分布:访问次数[:参数]，如 zipf:20000:0.99、strided:5000:65536、looping:20000:4194304
+		 */
+		public static Phase parse(String spec) {
+			String[] parts = spec.split(":");
+			Distribution distribution = Distribution.valueOf(parts[0].toUpperCase());
+			int accesses = Integer.parseInt(parts[1]);
+			double param = parts.length > 2 ? Double.parseDouble(parts[2]) : defaultParam(distribution);
+			return new Phase(distribution, accesses, param);
+		}
+
+		private static double defaultParam(Distribution distribution) {
+			switch (distribution) {
+				case ZIPF:
+					return 0.99;
+				case STRIDED:
+					return 64 * 1024;
+				case LOOPING:
+					return 4 * 1024 * 1024;
+				default:
+					return 0;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return param == 0 ? distribution.toString() : distribution + ":" + (distribution == Distribution.ZIPF ? String.valueOf(param) : String.valueOf((long) param));
+		}
+	}
+
+	private final MMU mmu;
+
+	private final int readLen;
+
+	private final Random random;
+
+	private final long span;    // 全部段首尾相接后的地址空间大小
+
+	public WorkloadGenerator(MMU mmu, int readLen, long seed) {
+		this.mmu = mmu;
+		this.readLen = readLen;
+		this.random = new Random(seed);
+		this.span = (long) (mmu.getMemory().isSegment() ? LoadDriver.SEG_COUNT : 1) * LoadDriver.SEG_SIZE_B;
+	}
+
+	/**
+	 * 重建段表后依次运行全部阶段
+	 *
+	 * @return 每个阶段的结果
+	 */
+	public List<PhaseReport> run(List<Phase> phases) {
+		LoadDriver.setUp(mmu.getMemory());
+		List<PhaseReport> reports = new ArrayList<>();
+		for (Phase phase : phases) {
+			reports.add(run(phase));
+		}
+		return reports;
+	}
+
+	private PhaseReport run(Phase phase) {
+		Memory memory = mmu.getMemory();
+		Disk disk = memory.getDisk();
+		long[] positions = positions(phase);
+		long faultsBefore = memory.getTotalPageFaults() + memory.getTotalSegmentFaults();
+		long bytesBefore = disk.getBytesRead();
+		long start = System.nanoTime();
+		for (long position : positions) {
+			int segNO = (int) (position / LoadDriver.SEG_SIZE_B);
+			int pos = (int) (position % LoadDriver.SEG_SIZE_B);
+			mmu.read(LoadDriver.logicAddr(memory, segNO, pos), readLen);
+		}
+		long wallNanos = System.nanoTime() - start;
+		long faults = memory.getTotalPageFaults() + memory.getTotalSegmentFaults() - faultsBefore;
+		return new PhaseReport(phase.toString(), positions.length, faults, disk.getBytesRead() - bytesBefore, wallNanos);
+	}
+
+	/**
+	 * 按阶段的分布生成全部访问位置(在首尾相接的地址空间中)，生成与访问分开，访问计时不包含生成的开销
+	 */
+	long[] positions(Phase phase) {
+		long[] positions = new long[phase.accesses];
+		long cursor = Math.floorMod(random.nextLong(), span);
+		long loopOffset = 0L;
+		long window = Math.max(readLen, Math.min(span, (long) phase.param));
+		ZipfSampler zipf = phase.distribution == Distribution.ZIPF ? new ZipfSampler((int) (span / readLen), phase.param, random) : null;
+		for (int i = 0; i < phase.accesses; i++) {
+			long position;
+			switch (phase.distribution) {
+				case ZIPF:
+					position = (long) zipf.next() * readLen;
+					break;
+				case SEQUENTIAL:
+					position = cursor;
+					cursor = (cursor + readLen) % span;
+					break;
+				case STRIDED:
+					position = cursor;
+					cursor = (cursor + (long) phase.param) % span;
+					break;
+				case LOOPING:
+					position = (cursor + loopOffset) % span;
+					loopOffset = (loopOffset + readLen) % window;
+					break;
+				case UNIFORM:
+				default:
+					position = Math.floorMod(random.nextLong(), span);
+					break;
+			}
+			positions[i] = clamp(position);
+		}
+		return positions;
+	}
+
+	/**
+	 * 访问不跨越段尾：落在段末readLen字节内的位置移到段末尾之前
+	 */
+	private long clamp(long position) {
+		long inSeg = position % LoadDriver.SEG_SIZE_B;
+		return inSeg > LoadDriver.SEG_SIZE_B - readLen ? position - inSeg + LoadDriver.SEG_SIZE_B - readLen : position;
+	}
+
+	/**
+	 * Zipf分布采样：预先计算累积分布，按二分查找得到排名，再通过随机排列映射到项，热项不集中在地址空间开头
+	 */
+	static class ZipfSampler {
+
+		private final double[] cdf;
+
+		private final int[] items;
+
+		private final Random random;
+
+		ZipfSampler(int n, double skew, Random random) {
+			this.random = random;
+			this.cdf = new double[n];
+			double sum = 0.0;
+			for (int k = 0; k < n; k++) {
+				sum += 1.0 / Math.pow(k + 1, skew);
+				cdf[k] = sum;
+			}
+			for (int k = 0; k < n; k++) {
+				cdf[k] /= sum;
+			}
+			this.items = new int[n];
+			for (int k = 0; k < n; k++) {
+				items[k] = k;
+			}
+			for (int k = n - 1; k > 0; k--) {
+				int j = random.nextInt(k + 1);
+				int tmp = items[k];
+				items[k] = items[j];
+				items[j] = tmp;
+			}
+		}
+
+		int next() {
+			double u = random.nextDouble();
+			int lo = 0;
+			int hi = cdf.length - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (cdf[mid] < u) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return items[lo];
+		}
+	}
+
+	/**
+	 * 参数：[real|seg|ps] [种子] [阶段...]，阶段格式见Phase#parse，默认依次为 zipf、sequential、strided、looping、uniform
+	 */
+	public static void main(String[] args) {
+		String mode = args.length > 0 ? args[0] : "ps";
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 2019L;
+		List<Phase> phases = new ArrayList<>();
+		for (int i = 2; i < args.length; i++) {
+			phases.add(Phase.parse(args[i]));
+		}
+		if (phases.isEmpty()) {
+			for (String spec : new String[]{"zipf:20000", "sequential:20000", "strided:5000", "looping:20000", "uniform:5000"}) {
+				phases.add(Phase.parse(spec));
+			}
+		}
+		MMU mmu = new MMU(Memory.builder().segment(!mode.equals("real")).page(mode.equals("ps")).build());
+
+		System.out.println("mode=" + mode + " seed=" + seed);
+		System.out.println(PhaseReport.header());
+		for (PhaseReport report : new WorkloadGenerator(mmu, 128, seed).run(phases)) {
+			System.out.println(report);
+		}
+	}
+
+}
@@ -0,0 +1,239 @@
+package memory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 压缩内存交换层(类似zswap)，位于Memory和Disk之间
+ *
+ * Memory换出干净的页(段页式)或段的块(分段)时把内容压缩后放入本层，按磁盘地址索引；
+ * 之后缺页(缺段)时先查本层，命中则解压到页框，并从本层删除，未命中才读磁盘
+ * 压缩后的总字节数不超过预算，超出时按LRU丢弃最久未用的项(内容仍可以从磁盘读回)
+ *
+ * 压缩采用游程编码加字面量：主存中的char按原值保存(读磁盘时按有符号字节扩展)，
+ * 	控制字的最高位为1时表示其后一个字符重复(控制字 & 0x7FFF)次，为0时表示其后(控制字)个字符原样保存
+ * 默认磁盘镜像每个区间内容相同，一页压缩后只有两个字符
+ */
+public class CompressedSwap {
+
+	private static final int MAX_RUN = 0x7FFF;
+
+	private final int budget;
+
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long storedBytes = 0L;      // 当前压缩后的总字节数(一个char按一个字节计，与主存一致)
+
+	private long rawBytes = 0L;         // 当前保存的内容压缩前的总字节数
+
+	private long stores = 0L;
+
+	private long rejects = 0L;          // 压缩后仍超过预算而没有保存的次数
+
+	private long evictions = 0L;
+
+	private long hits = 0L;
+
+	private long misses = 0L;
+
+	private long decompressNanos = 0L;
+
+	/**
+	 * @param budget 压缩后数据的字节预算
+	 */
+	public CompressedSwap(int budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * 压缩src[off, off + len)并以磁盘地址key保存，已有的同地址项被替换
+	 */
+	public synchronized void put(long key, char[] src, int off, int len) {
+		remove(key);
+		char[] data = compress(src, off, len);
+		if (data.length > budget) {
+			rejects++;
+			return;
+		}
+		while (storedBytes + data.length > budget) {
+			Iterator<Map.Entry<Long, Entry>> eldest = entries.entrySet().iterator();
+			Entry entry = eldest.next().getValue();
+			eldest.remove();
+			storedBytes -= entry.data.length;
+			rawBytes -= entry.rawLen;
+			evictions++;
+		}
+		entries.put(key, new Entry(data, len));
+		storedBytes += data.length;
+		rawBytes += len;
+		stores++;
+	}
+
+	/**
+	 * 查找磁盘地址key处长度为len的内容，命中时解压到dest[destPos, destPos + len)并从本层删除
+	 *
+	 * @return 是否命中
+	 */
+	public synchronized boolean get(long key, int len, char[] dest, int destPos) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.rawLen != len) {
+			misses++;
+			return false;
+		}
+		long begin = System.nanoTime();
+		decompress(entry.data, dest, destPos);
+		decompressNanos += System.nanoTime() - begin;
+		remove(key);
+		hits++;
+		return true;
+	}
+
+	/**
+	 * 磁盘[start, start + len)被写入后删除与之重叠的项
+	 */
+	public synchronized void invalidate(long start, long len) {
+		Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Entry> item = it.next();
+			if (item.getKey() < start + len && item.getKey() + item.getValue().rawLen > start) {
+				storedBytes -= item.getValue().data.length;
+				rawBytes -= item.getValue().rawLen;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		storedBytes = 0L;
+		rawBytes = 0L;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * @return 压缩比，即保存内容的原始字节数/压缩后字节数
+	 */
+	public synchronized double getCompressionRatio() {
+		return storedBytes == 0 ? 0.0 : (double) rawBytes / storedBytes;
+	}
+
+	/**
+	 * @return 缺页(缺段)时本层的命中率
+	 */
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * @return 命中时的平均解压时间(纳秒)
+	 */
+	public synchronized double getAvgDecompressNanos() {
+		return hits == 0 ? 0.0 : (double) decompressNanos / hits;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getStores() {
+		return stores;
+	}
+
+	public synchronized long getRejects() {
+		return rejects;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized void resetStats() {
+		stores = 0L;
+		rejects = 0L;
+		evictions = 0L;
+		hits = 0L;
+		misses = 0L;
+		decompressNanos = 0L;
+	}
+
+	private void remove(long key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			storedBytes -= old.data.length;
+			rawBytes -= old.rawLen;
+		}
+	}
+
+	static char[] compress(char[] src, int off, int len) {
+		char[] out = new char[len + len / MAX_RUN + 2];
+		int n = 0;
+		int literalStart = -1;  // 当前字面量段的控制字位置
+		int i = off;
+		int end = off + len;
+		while (i < end) {
+			int run = 1;
+			while (i + run < end && run < MAX_RUN && src[i + run] == src[i]) {
+				run++;
+			}
+			if (run >= 3) {
+				out[n++] = (char) (0x8000 | run);
+				out[n++] = src[i];
+				literalStart = -1;
+				i += run;
+				continue;
+			}
+			if (literalStart < 0 || out[literalStart] == MAX_RUN) {
+				literalStart = n;
+				out[n++] = 0;
+			}
+			out[literalStart]++;
+			out[n++] = src[i++];
+		}
+		char[] data = new char[n];
+		System.arraycopy(out, 0, data, 0, n);
+		return data;
+	}
+
+	static void decompress(char[] data, char[] dest, int destPos) {
+		int i = 0;
+		while (i < data.length) {
+			int control = data[i++];
+			if ((control & 0x8000) != 0) {
+				int run = control & MAX_RUN;
+				char value = data[i++];
+				for (int j = 0; j < run; j++) {
+					dest[destPos++] = value;
+				}
+			} else {
+				System.arraycopy(data, i, dest, destPos, control);
+				i += control;
+				destPos += control;
+			}
+		}
+	}
+
+	private static class Entry {
+
+		private final char[] data;
+
+		private final int rawLen;
+
+		Entry(char[] data, int rawLen) {
+			this.data = data;
+			this.rawLen = rawLen;
+		}
+	}
+
+}
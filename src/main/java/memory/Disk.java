@@ -1,12 +1,14 @@
 package memory;
 
-import transformer.Transformer;
-
-import java.io.*;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 磁盘抽象类，磁盘大小为128M
+ * 磁盘抽象类，默认磁盘大小为128M，磁盘地址为long，可以通过DISK_SIZE_B或Memory.builder().diskSize()使用超过2G的磁盘
  *
  * 	磁盘数据组成：
  * 	[0M-20M): 0b00001111 // 空的 Test1读2048个0b00001111，Test2也是
@@ -15,123 +17,467 @@ import java.util.Arrays;
  * 	[64M-80M): 0b00110011 // Test3先读1025*1024个0b00110011，再读77个0b00001111
  * 	[80M-128M): 0b00000000
  */
-public class Disk {
+public class Disk implements AutoCloseable {
+
+	public static long DISK_SIZE_B = 128 * 1024 * 1024;      // 磁盘大小 128 MB
+
+	public static int CACHE_BLOCK_SIZE_B = 4 * 1024;      // 块缓存的块大小 4 KB
+
+	public static int CACHE_SIZE_B = 4 * 1024 * 1024;     // 块缓存容量 4 MB，设为0则关闭缓存
+
+	public static String DISK_PATH = "DISK.vdev";      // 默认磁盘镜像文件
 
-	public static int DISK_SIZE_B = 128 * 1024 * 1024;      // 磁盘大小 128 MB
+	// 默认实例使用的存储后端：file为磁盘镜像文件，memory为不访问文件系统的ProceduralDiskBackend，
+	// striped为按条带分布在DISK_PATH.0 ... DISK_PATH.(DISK_STRIPES - 1)中的StripedDiskBackend，可以通过-Ddisk.backend指定
+	public static String DISK_BACKEND = System.getProperty("disk.backend", "file");
 
-	private static Disk diskInstance = new Disk();
+	public static int DISK_STRIPES = 4;     // striped后端的镜像文件数
+
+	public static int DISK_STRIPE_SIZE_B = 64 * 1024;      // striped后端的条带大小 64 KB
+
+	// 默认磁盘内容，与类注释一致：{区间长度(字节), 填充字节}，超出128M的部分为0
+	public static final int[][] DEFAULT_LAYOUT = {
+			{20 * 1024 * 1024, 0b00001111},
+			{12 * 1024 * 1024, 0b00000011},
+			{32 * 1024 * 1024, 0b01010101},
+			{16 * 1024 * 1024, 0b00110011},
+			{48 * 1024 * 1024, 0b00000000}
+	};
+
+	private static Disk diskInstance = newDefault(DISK_SIZE_B);
 
 //	private static char[] disk = new char[DISK_SIZE_B];
 
-	private static File disk_device;
+	private final DiskBackend backend;
+
+	private volatile DiskBackend io;    // 实际发出读写的对象：写缓冲区 -> I/O调度器 -> 时间模型 -> backend，未开启的层被跳过
+
+	private DiskCostModel costModel;
+
+	private DiskScheduler scheduler;
+
+	private DiskWriteBuffer writeBuffer;
+
+	private final long size;
+
+	private DiskCache cache = new DiskCache(CACHE_BLOCK_SIZE_B, CACHE_SIZE_B);
+
+	private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+
+	private final AtomicLong bytesRead = new AtomicLong();     // 块缓存未命中、实际从下层读取的字节数
+
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private final BitSet zeroBlocks = new BitSet();     // 读取时检测到全为0的块(按块缓存的块大小)，写入时清除
+
+	/**
+	 * 使用指定的磁盘镜像文件，文件不存在时按默认内容初始化
+	 * 多个Disk实例可以共用同一个镜像文件，但各自拥有独立的块缓存
+	 *
+	 * @param path 磁盘镜像文件路径
+	 * @param size 磁盘大小(字节)
+	 */
+	public Disk(String path, long size) {
+		this(new FileDiskBackend(path, size));
+	}
+
+	public Disk(DiskBackend backend) {
+		this.backend = backend;
+		this.io = backend;
+		this.size = backend.size();
+	}
+
+	/**
+	 * 按DISK_BACKEND创建默认内容的磁盘
+	 */
+	public static Disk newDefault(long size) {
+		if ("memory".equals(DISK_BACKEND)) {
+			return new Disk(new ProceduralDiskBackend(size));
+		}
+		if ("striped".equals(DISK_BACKEND)) {
+			return new Disk(new StripedDiskBackend(DISK_PATH, DISK_STRIPES, size, DISK_STRIPE_SIZE_B));
+		}
+		return new Disk(DISK_PATH, size);
+	}
 
-	private Disk() {
-		disk_device = new File("DISK.vdev");
-		if (!disk_device.exists()) {
-			BufferedWriter writer = null;
+	public static Disk getDisk() {
+		return diskInstance;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public DiskBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * 在存储后端之前加入电梯式I/O调度器，并发的缺块读取按地址排序并合并
+	 *
+	 * @param windowMicros 批处理窗口(微秒)
+	 * @return 调度器，可以从中读取排队时间和合并比
+	 */
+	public synchronized DiskScheduler enableScheduler(int windowMicros) {
+		disableScheduler();
+		scheduler = new DiskScheduler(device(), windowMicros);
+		relink();
+		return scheduler;
+	}
+
+	public synchronized void disableScheduler() {
+		if (scheduler != null) {
+			DiskScheduler old = scheduler;
+			scheduler = null;
+			relink();
+			old.shutdown();
+		}
+	}
+
+	/**
+	 * @return 当前的I/O调度器，未开启时为null
+	 */
+	public synchronized DiskScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * 在I/O调度器(或存储后端)之前加入写合并缓冲区，相邻的小写入合并后批量写出
+	 *
+	 * @param capacity        缓冲区容量(字节)，达到后立即刷盘
+	 * @param flushMillis     未刷盘数据的最长停留时间(毫秒)，为0时只按容量和force()刷盘
+	 * @param flushBeforeRead 读到未刷盘的区间时是否先刷盘，否则直接用缓冲区中的数据覆盖读结果
+	 * @return 写缓冲区，可以从中读取合并比
+	 */
+	public synchronized DiskWriteBuffer enableWriteBuffer(int capacity, int flushMillis, boolean flushBeforeRead) {
+		disableWriteBuffer();
+		writeBuffer = new DiskWriteBuffer(scheduler != null ? scheduler : device(), capacity, flushMillis, flushBeforeRead);
+		relink();
+		return writeBuffer;
+	}
+
+	/**
+	 * 刷出缓冲的数据后关闭写缓冲区
+	 */
+	public synchronized void disableWriteBuffer() {
+		if (writeBuffer != null) {
+			DiskWriteBuffer old = writeBuffer;
 			try {
-				disk_device.createNewFile();
-				// 初始化磁盘
-				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(disk_device)));
-				char[] dataUnit = new char[1024];
-				Arrays.fill(dataUnit, (char) 0b00001111);
-				for (int i=0; i<20; i++) {
-					for (int j=0; j<1024; j++) {
-						writer.write(dataUnit);
-					}
-				}
-				Arrays.fill(dataUnit, (char) 0b00000011);
-				for (int i=0; i<12; i++) {
-					for (int j=0; j<1024; j++) {
-						writer.write(dataUnit);
-					}
-				}
-				Arrays.fill(dataUnit, (char) 0b01010101);
-				for (int i=0; i<32; i++) {
-					for (int j=0; j<1024; j++) {
-						writer.write(dataUnit);
-					}
-				}
-				Arrays.fill(dataUnit, (char) 0b00110011);
-				for (int i=0; i<16; i++) {
-					for (int j=0; j<1024; j++) {
-						writer.write(dataUnit);
-					}
-				}
-				Arrays.fill(dataUnit, (char) 0b00000000);
-				for (int i=0; i<48; i++) {
-					for (int j=0; j<1024; j++) {
-						writer.write(dataUnit);
-					}
-				}
+				// 先刷盘再断开，断开前后读到的数据一致
+				old.force();
+				writeBuffer = null;
+				relink();
+				old.shutdown();
 			} catch (IOException e) {
 				e.printStackTrace();
-			} finally {
-				if (writer != null) {
-					try {
-						writer.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
 			}
 		}
 	}
 
-	public static Disk getDisk() {
-		return diskInstance;
+	/**
+	 * @return 当前的写缓冲区，未开启时为null
+	 */
+	public synchronized DiskWriteBuffer getWriteBuffer() {
+		return writeBuffer;
 	}
 
-	public char[] read(String eip, int len){
-		char[] data = new char[len];
-		RandomAccessFile reader = null;
+	/**
+	 * 在存储后端之上加入时间模型，此后每次实际传输(合并和缓存之后)按设备参数计算耗时
+	 *
+	 * @param profile 设备参数，如DiskCostModel.Profile.HDD、DiskCostModel.Profile.NVME
+	 * @param mode    SLEEP为按耗时休眠，SIMULATE为只累加模拟时间
+	 * @return 时间模型，可以从中读取模拟时间
+	 */
+	public synchronized DiskCostModel enableCostModel(DiskCostModel.Profile profile, DiskCostModel.Mode mode) {
+		costModel = new DiskCostModel(backend, profile, mode);
+		relink();
+		return costModel;
+	}
+
+	public synchronized void disableCostModel() {
+		costModel = null;
+		relink();
+	}
+
+	/**
+	 * @return 当前的时间模型，未开启时为null
+	 */
+	public synchronized DiskCostModel getCostModel() {
+		return costModel;
+	}
+
+	/**
+	 * 把写缓冲区中的数据写到存储后端并刷到持久存储
+	 */
+	public void force() {
 		try {
-			reader = new RandomAccessFile(disk_device, "r");
-			// 本作业只有128M磁盘，不会超出int表示范围
-			// ps: java的char是两个字节，但是write()方法写的是字节，因此会丢掉char的高8-bits，读的时候需要用readByte()
-			// pss: 读磁盘会很慢，请尽可能减少read函数调用
-			// psss: 这几行注释你们其实不需要看
-			reader.skipBytes(Integer.parseInt(new Transformer().binaryToInt("0" + eip)));
-			for (int i=0; i<len; i++) {
-				data[i] = (char) reader.readByte();
-			}
-		} catch (FileNotFoundException e) {
+			io.force();
+		} catch (IOException e) {
 			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 关闭磁盘：刷出写缓冲区中的数据，停止I/O调度器，再关闭存储后端(释放镜像文件的文件描述符)
+	 */
+	@Override
+	public synchronized void close() {
+		disableWriteBuffer();
+		disableScheduler();
+		try {
+			backend.force();
+			backend.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-			if (reader != null) {
-				try {
-					reader.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+		}
+	}
+
+	/**
+	 * @return 实际设备，开启时间模型时为DiskCostModel
+	 */
+	private DiskBackend device() {
+		return costModel != null ? costModel : backend;
+	}
+
+	/**
+	 * 按当前开启的层重新连接读写路径
+	 */
+	private void relink() {
+		if (scheduler != null) {
+			scheduler.setBackend(device());
+		}
+		DiskBackend lower = scheduler != null ? scheduler : device();
+		if (writeBuffer != null) {
+			try {
+				writeBuffer.setTarget(lower);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
+			io = writeBuffer;
+		} else {
+			io = lower;
 		}
+	}
+
+	public char[] read(String eip, int len){
+		char[] data = new char[len];
+		read(eip, len, data, 0);
 		return data;
 	}
 
+	/**
+	 * 将磁盘数据直接读入dest[destPos, destPos + len)，可以被多个线程并发调用
+	 * 未命中块缓存的连续块合并成一次对存储后端的按位置读取
+	 *
+	 * @param eip     32位磁盘地址
+	 * @param len     读取长度
+	 * @param dest    目标数组
+	 * @param destPos 目标数组中的起始位置
+	 */
+	public void read(String eip, int len, char[] dest, int destPos){
+		read(Long.parseLong(eip, 2), len, dest, destPos);
+	}
+
+	/**
+	 * 按long地址读取，磁盘可以超过2G
+	 *
+	 * @param start   磁盘地址
+	 * @param len     读取长度
+	 * @param dest    目标数组
+	 * @param destPos 目标数组中的起始位置
+	 */
+	public void read(long start, int len, char[] dest, int destPos){
+		if (len <= 0) {
+			return;
+		}
+		try {
+			// ps: java的char是两个字节，但是write()方法写的是字节，因此会丢掉char的高8-bits，读的时候需要按字节读
+			// pss: 读磁盘会很慢，因此按块读取并缓存，块缓存命中时不再访问文件
+			int blockSize = cache.getBlockSize();
+			int firstBlock = (int) (start / blockSize);
+			int lastBlock = (int) ((start + len - 1) / blockSize);
+			int missStart = -1;     // 当前连续未命中区间的第一个块
+			for (int blockNO = firstBlock; blockNO <= lastBlock; blockNO++) {
+				byte[] block = cache.get(blockNO);
+				if (block == null) {
+					if (missStart < 0) {
+						missStart = blockNO;
+					}
+					continue;
+				}
+				if (missStart >= 0) {
+					readBlocks(missStart, blockNO - missStart, start, len, dest, destPos);
+					missStart = -1;
+				}
+				copyBlock(blockNO, block, start, len, dest, destPos);
+			}
+			if (missStart >= 0) {
+				readBlocks(missStart, lastBlock + 1 - missStart, start, len, dest, destPos);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void readBlocks(int firstBlock, int count, long start, int len, char[] dest, int destPos) throws IOException {
+		DiskCache cache = this.cache;
+		int blockSize = cache.getBlockSize();
+		byte[] bytes = new byte[count * blockSize];
+		long readSeq = cache.writeSeq();    // 读取期间被写入的块不放入缓存
+		long begin = EventTrace.begin();
+		io.read((long) firstBlock * blockSize, bytes, 0, bytes.length);
+		EventTrace.emit(EventTrace.Type.DISK_READ, -1, (long) firstBlock * blockSize, bytes.length, begin);
+		bytesRead.addAndGet(bytes.length);
+		for (int i = 0; i < count; i++) {
+			byte[] block = Arrays.copyOfRange(bytes, i * blockSize, (i + 1) * blockSize);
+			markZero(firstBlock + i, block);
+			cache.put(firstBlock + i, block, readSeq);
+			copyBlock(firstBlock + i, block, start, len, dest, destPos);
+		}
+	}
+
+	private void copyBlock(int blockNO, byte[] block, long start, int len, char[] dest, int destPos) {
+		long blockStart = (long) blockNO * block.length;
+		int from = (int) (Math.max(start, blockStart) - blockStart);
+		int to = (int) (Math.min(start + len, blockStart + block.length) - blockStart);
+		int pos = (int) (destPos + blockStart - start);
+		for (int i = from; i < to; i++) {
+			dest[pos + i] = (char) block[i];
+		}
+	}
+
 	public void write(String eip, int len, char[] data){
-		RandomAccessFile writer = null;
+		write(Long.parseLong(eip, 2), len, data);
+	}
+
+	public void write(long start, int len, char[] data){
 		try {
-			writer = new RandomAccessFile(disk_device, "rw");
-			writer.skipBytes(Integer.parseInt(new Transformer().binaryToInt("0" + eip)));
+			// java的char是两个字节，磁盘只保存低8-bits
+			byte[] bytes = new byte[len];
 			for (int i=0; i<len; i++) {
-				writer.write(data[i]);
+				bytes[i] = (byte) data[i];
+			}
+			long begin = EventTrace.begin();
+			io.write(start, bytes, 0, len);
+			EventTrace.emit(EventTrace.Type.DISK_WRITE, -1, start, len, begin);
+			bytesWritten.addAndGet(len);
+			synchronized (zeroBlocks) {
+				zeroBlocks.clear((int) (start / cache.getBlockSize()), (int) ((start + len - 1) / cache.getBlockSize() + 1));
 			}
-		} catch (FileNotFoundException e) {
+			// 写穿：同步更新已缓存的块
+			cache.update(start, len, data);
+			// 通知上层存储数据失效
+			for (WriteListener listener : writeListeners) {
+				listener.onWrite(start, len);
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 不读取数据判断[eip, eip + len)是否全为0
+	 * 先查已检测到的全0块，不能确定时询问存储后端(ProceduralDiskBackend按布局判断，磁盘镜像文件不知道，要等读过一次才能确定)
+	 *
+	 * @param eip 32位磁盘地址
+	 * @param len 长度
+	 */
+	public boolean isZero(String eip, int len) {
+		return isZero(Long.parseLong(eip, 2), len);
+	}
+
+	public boolean isZero(long start, int len) {
+		if (len <= 0) {
+			return true;
+		}
+		int blockSize = cache.getBlockSize();
+		int firstBlock = (int) (start / blockSize);
+		int lastBlock = (int) ((start + len - 1) / blockSize);
+		synchronized (zeroBlocks) {
+			if (zeroBlocks.nextClearBit(firstBlock) > lastBlock) {
+				return true;
+			}
+		}
+		try {
+			return io.isZero(start, len);
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-			if (writer != null) {
-				try {
-					writer.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+			return false;
+		}
+	}
+
+	private void markZero(int blockNO, byte[] block) {
+		for (byte b : block) {
+			if (b != 0) {
+				return;
 			}
 		}
+		synchronized (zeroBlocks) {
+			zeroBlocks.set(blockNO);
+		}
+	}
+
+	/**
+	 * 磁盘被写入后通知上层存储，用于使上层已加载的数据失效
+	 */
+	public interface WriteListener {
+
+		void onWrite(long start, int len);
+
+	}
+
+	public void addWriteListener(WriteListener listener) {
+		writeListeners.add(listener);
+	}
+
+	/**
+	 * 按照CACHE_BLOCK_SIZE_B和CACHE_SIZE_B重建块缓存，原有缓存内容和统计信息被丢弃
+	 */
+	public void resetCache() {
+		cache = new DiskCache(CACHE_BLOCK_SIZE_B, CACHE_SIZE_B);
+		// 块大小可能改变，已检测到的全0块按旧块号记录
+		synchronized (zeroBlocks) {
+			zeroBlocks.clear();
+		}
+	}
+
+	/**
+	 * 丢弃块缓存中的数据，保留统计信息
+	 */
+	public void dropCache() {
+		cache.clear();
+	}
+
+	public long getCacheHits() {
+		return cache.getHits();
+	}
+
+	public long getCacheMisses() {
+		return cache.getMisses();
+	}
+
+	public long getCacheEvictions() {
+		return cache.getEvictions();
+	}
+
+	public double getCacheHitRate() {
+		long total = cache.getHits() + cache.getMisses();
+		return total == 0 ? 0.0 : (double) cache.getHits() / total;
+	}
+
+	public void resetCacheStats() {
+		cache.resetStats();
+	}
+
+	/**
+	 * @return 块缓存之下实际读取的字节数
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,49 @@
+package memory;
+
+import java.io.IOException;
+
+/**
+ * 磁盘的存储后端，Disk在其上提供按地址读写和块缓存
+ *
+ * 读写都按位置进行，不维护读写指针，实现需要支持多个线程并发读
+ * 持有文件等资源的后端在close()中释放，由Disk#close调用
+ */
+public interface DiskBackend extends AutoCloseable {
+
+	/**
+	 * @return 磁盘大小(字节)
+	 */
+	long size();
+
+	/**
+	 * 读取[position, position + len)到dest[off, off + len)
+	 */
+	void read(long position, byte[] dest, int off, int len) throws IOException;
+
+	/**
+	 * 将src[off, off + len)写到[position, position + len)
+	 */
+	void write(long position, byte[] src, int off, int len) throws IOException;
+
+	/**
+	 * 不读取数据判断[position, position + len)是否全为0，用于把全0的页映射到共享的零页框
+	 * 默认返回false，表示不知道，由Disk在读取时检测
+	 */
+	default boolean isZero(long position, int len) throws IOException {
+		return false;
+	}
+
+	/**
+	 * 将已经写入的数据刷到持久存储，默认不需要任何操作
+	 */
+	default void force() throws IOException {
+	}
+
+	/**
+	 * 释放后端持有的资源，关闭后不能再读写，默认不需要任何操作
+	 */
+	@Override
+	default void close() throws IOException {
+	}
+
+}
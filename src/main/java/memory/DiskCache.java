@@ -0,0 +1,182 @@
+package memory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk内部的块缓存，以固定大小的块为单位缓存磁盘数据
+ *
+ * 替换策略采用分段LRU(SLRU)：
+ * 		1. 新读入的块先进入试用区(probation)
+ * 		2. 试用区的块再次命中后晋升到保护区(protected)，保护区满时最久未用的块降级回试用区
+ * 		3. 淘汰时优先淘汰试用区中最久未用的块
+ * 一次性顺序读入的大段(例如整段加载)只会在试用区中流转，不会冲掉保护区中反复访问的热块
+ *
+ * 读入与写入并发时，未命中的读可能先从下层读到写入之前的数据，再在写入之后放入缓存，之后的读会一直命中旧数据
+ * 因此每次写入递增写序号并记在块所在的槽位上，读取前取得当前写序号，放入时块的槽位在此之后被写过就不放入
+ */
+class DiskCache {
+
+	private final int blockSize;
+
+	private final int capacity;         // 最多缓存的块数
+
+	private final int protectedCapacity; // 保护区最多容纳的块数，占总容量的80%
+
+	// accessOrder=true，迭代顺序即LRU顺序，头部为最久未用的块
+	private final LinkedHashMap<Integer, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final LinkedHashMap<Integer, byte[]> protectedSeg = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long hits = 0L;
+
+	private long misses = 0L;
+
+	private long evictions = 0L;
+
+	private static final int WRITE_STAMP_SLOTS = 4096;    // 块号按槽位数取模，不同的块共用槽位时只会多放弃一些放入
+
+	private final long[] writeStamps = new long[WRITE_STAMP_SLOTS];     // 槽位内的块最近一次被写入时的写序号
+
+	private long writeSeq = 0L;
+
+	DiskCache(int blockSize, int capacityB) {
+		this.blockSize = blockSize;
+		this.capacity = Math.max(0, capacityB / blockSize);
+		this.protectedCapacity = capacity * 4 / 5;
+	}
+
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * 查找块，命中时按SLRU规则调整块的位置
+	 *
+	 * @param blockNO 块号
+	 * @return 块数据，未命中返回null
+	 */
+	synchronized byte[] get(int blockNO) {
+		byte[] block = protectedSeg.get(blockNO);
+		if (block != null) {
+			hits++;
+			return block;
+		}
+		block = probation.remove(blockNO);
+		if (block != null) {
+			hits++;
+			promote(blockNO, block);
+			return block;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * @return 当前的写序号，在从下层读取之前取得，放入时传给put
+	 */
+	synchronized long writeSeq() {
+		return writeSeq;
+	}
+
+	/**
+	 * 放入从文件中新读入的块
+	 *
+	 * @param readSeq 读取之前取得的写序号，块在此之后被写入过时读到的数据可能已过期，不放入
+	 */
+	synchronized void put(int blockNO, byte[] block, long readSeq) {
+		if (!isEnabled() || protectedSeg.containsKey(blockNO) || writeStamps[Math.floorMod(blockNO, WRITE_STAMP_SLOTS)] > readSeq) {
+			return;
+		}
+		probation.put(blockNO, block);
+		while (probation.size() + protectedSeg.size() > capacity) {
+			if (!evictEldest(probation)) {
+				evictEldest(protectedSeg);
+			}
+		}
+	}
+
+	/**
+	 * 磁盘写入后同步更新已缓存的块，保证缓存与磁盘一致
+	 *
+	 * @param start 写入的起始磁盘地址
+	 * @param len   写入长度
+	 * @param data  写入的数据
+	 */
+	synchronized void update(long start, int len, char[] data) {
+		if (!isEnabled() || len <= 0) {
+			return;
+		}
+		int firstBlock = (int) (start / blockSize);
+		int lastBlock = (int) ((start + len - 1) / blockSize);
+		writeSeq++;
+		for (int blockNO = firstBlock; blockNO <= lastBlock; blockNO++) {
+			writeStamps[Math.floorMod(blockNO, WRITE_STAMP_SLOTS)] = writeSeq;
+			byte[] block = protectedSeg.containsKey(blockNO) ? protectedSeg.get(blockNO) : probation.get(blockNO);
+			if (block == null) {
+				continue;
+			}
+			long blockStart = (long) blockNO * blockSize;
+			long from = Math.max(start, blockStart);
+			long to = Math.min(start + len, blockStart + blockSize);
+			for (long addr = from; addr < to; addr++) {
+				block[(int) (addr - blockStart)] = (byte) data[(int) (addr - start)];
+			}
+		}
+	}
+
+	synchronized void clear() {
+		probation.clear();
+		protectedSeg.clear();
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	synchronized int size() {
+		return probation.size() + protectedSeg.size();
+	}
+
+	synchronized void resetStats() {
+		hits = 0L;
+		misses = 0L;
+		evictions = 0L;
+	}
+
+	private void promote(int blockNO, byte[] block) {
+		protectedSeg.put(blockNO, block);
+		if (protectedSeg.size() > protectedCapacity) {
+			// 保护区溢出，最久未用的块降级到试用区的MRU端
+			Iterator<Map.Entry<Integer, byte[]>> it = protectedSeg.entrySet().iterator();
+			Map.Entry<Integer, byte[]> eldest = it.next();
+			it.remove();
+			probation.put(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	private boolean evictEldest(LinkedHashMap<Integer, byte[]> segment) {
+		Iterator<Map.Entry<Integer, byte[]>> it = segment.entrySet().iterator();
+		if (!it.hasNext()) {
+			return false;
+		}
+		it.next();
+		it.remove();
+		evictions++;
+		return true;
+	}
+
+}
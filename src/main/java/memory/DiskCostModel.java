@@ -0,0 +1,240 @@
+package memory;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 磁盘时间模型，位于存储后端之上、I/O调度器之下，每次实际传输按设备参数计算耗时
+ *
+ * 	一次传输的耗时 = 固定延迟 + 寻道时间 + 旋转延迟 + 传输长度 / 带宽
+ * 		寻道时间：传输起点不是上一次传输的终点时产生，在最短和最长寻道时间之间按 sqrt(寻道距离 / 磁盘大小) 插值
+ * 		旋转延迟：产生寻道时加上平均旋转延迟(半圈)
+ * 	队列深度为d时设备最多同时服务d个传输：
+ * 		SLEEP模式：调用线程按耗时休眠，同时休眠的线程数不超过d，超出的在设备前排队
+ * 		SIMULATE模式：不休眠，把耗时累加到d条模拟通道中最早空闲的一条上，模拟时间为最忙通道的累计时间；
+ * 			只有实际并发发出的传输才会分到不同通道，单线程访问时模拟时间就是耗时之和
+ * 	模拟时间与墙钟时间分开统计，比较不同的替换和预取配置时使用模拟时间
+ */
+public class DiskCostModel implements DiskBackend {
+
+	public enum Mode {
+		SLEEP,          // 按耗时休眠，墙钟时间接近真实设备
+		SIMULATE        // 只累加模拟时间
+	}
+
+	/**
+	 * 设备参数，时间单位均为纳秒
+	 */
+	public static class Profile {
+
+		// 7200转机械硬盘：寻道0.5ms-15ms，半圈4.17ms，150MB/s，一次只服务一个请求
+		public static final Profile HDD = new Profile(0L, 500_000L, 15_000_000L, 4_170_000L, 150L * 1000 * 1000, 1);
+
+		// NVMe固态硬盘：无寻道，每次传输80us，3GB/s，队列深度32
+		public static final Profile NVME = new Profile(80_000L, 0L, 0L, 0L, 3000L * 1000 * 1000, 32);
+
+		private final long latencyNanos;
+
+		private final long minSeekNanos;
+
+		private final long maxSeekNanos;
+
+		private final long rotationNanos;
+
+		private final long bytesPerSecond;
+
+		private final int queueDepth;
+
+		public Profile(long latencyNanos, long minSeekNanos, long maxSeekNanos, long rotationNanos, long bytesPerSecond, int queueDepth) {
+			if (bytesPerSecond <= 0 || queueDepth <= 0) {
+				throw new IllegalArgumentException("带宽和队列深度必须大于0");
+			}
+			this.latencyNanos = latencyNanos;
+			this.minSeekNanos = minSeekNanos;
+			this.maxSeekNanos = maxSeekNanos;
+			this.rotationNanos = rotationNanos;
+			this.bytesPerSecond = bytesPerSecond;
+			this.queueDepth = queueDepth;
+		}
+
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+	}
+
+	private final DiskBackend backend;
+
+	private final Profile profile;
+
+	private final Mode mode;
+
+	private final Semaphore slots;      // SLEEP模式下的设备队列
+
+	private final long[] channels;      // SIMULATE模式下各通道的累计模拟时间
+
+	private int inFlight = 0;
+
+	private long head = 0L;     // 上一次传输的结束地址
+
+	private long transfers = 0L;
+
+	private long bytes = 0L;
+
+	private long busyNanos = 0L;    // 全部传输的耗时之和
+
+	public DiskCostModel(DiskBackend backend, Profile profile, Mode mode) {
+		this.backend = backend;
+		this.profile = profile;
+		this.mode = mode;
+		this.slots = new Semaphore(profile.queueDepth, true);
+		this.channels = new long[profile.queueDepth];
+	}
+
+	@Override
+	public long size() {
+		return backend.size();
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int off, int len) throws IOException {
+		long nanos = begin(position, len);
+		try {
+			delay(nanos);
+			backend.read(position, dest, off, len);
+		} finally {
+			end();
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] src, int off, int len) throws IOException {
+		long nanos = begin(position, len);
+		try {
+			delay(nanos);
+			backend.write(position, src, off, len);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * 只查询元数据，不计传输时间
+	 */
+	@Override
+	public boolean isZero(long position, int len) throws IOException {
+		return backend.isZero(position, len);
+	}
+
+	@Override
+	public void force() throws IOException {
+		backend.force();
+	}
+
+	public Profile getProfile() {
+		return profile;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @param position 传输起点
+	 * @param len      传输长度
+	 * @param head     上一次传输的终点
+	 * @return 一次传输的耗时(纳秒)
+	 */
+	public long cost(long position, int len, long head) {
+		long nanos = profile.latencyNanos + len * 1000_000_000L / profile.bytesPerSecond;
+		long distance = Math.abs(position - head);
+		if (distance > 0 && (profile.maxSeekNanos > 0 || profile.rotationNanos > 0)) {
+			double fraction = Math.min(1.0, (double) distance / Math.max(1L, size()));
+			nanos += profile.minSeekNanos + (long) ((profile.maxSeekNanos - profile.minSeekNanos) * Math.sqrt(fraction));
+			nanos += profile.rotationNanos;
+		}
+		return nanos;
+	}
+
+	public synchronized long getTransfers() {
+		return transfers;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return 全部传输的耗时之和(纳秒)
+	 */
+	public synchronized long getBusyNanos() {
+		return busyNanos;
+	}
+
+	/**
+	 * @return 模拟时间(纳秒)，即最忙的设备通道的累计耗时；SLEEP模式下与busyNanos / 并发度相当
+	 */
+	public synchronized long getSimulatedNanos() {
+		long max = 0L;
+		for (long channel : channels) {
+			max = Math.max(max, channel);
+		}
+		return max;
+	}
+
+	public synchronized void resetStats() {
+		transfers = 0L;
+		bytes = 0L;
+		busyNanos = 0L;
+		for (int i = 0; i < channels.length; i++) {
+			channels[i] = 0L;
+		}
+	}
+
+	/**
+	 * 计算传输耗时并记到一条模拟通道上，传输在end()之前都算作正在进行
+	 */
+	private synchronized long begin(long position, int len) {
+		long nanos = cost(position, len, head);
+		head = position + len;
+		transfers++;
+		bytes += len;
+		busyNanos += nanos;
+		// 只在实际并发的传输之间分配通道
+		inFlight++;
+		int width = Math.min(inFlight, channels.length);
+		int channel = 0;
+		for (int i = 1; i < width; i++) {
+			if (channels[i] < channels[channel]) {
+				channel = i;
+			}
+		}
+		channels[channel] += nanos;
+		return nanos;
+	}
+
+	private synchronized void end() {
+		inFlight--;
+	}
+
+	private void delay(long nanos) throws IOException {
+		if (mode != Mode.SLEEP) {
+			return;
+		}
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		try {
+			long deadline = System.nanoTime() + nanos;
+			for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+				LockSupport.parkNanos(left);
+			}
+		} finally {
+			slots.release();
+		}
+	}
+
+}
@@ -0,0 +1,344 @@
+package memory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 位于存储后端之前的电梯式I/O调度器
+ *
+ * 调用线程提交请求后阻塞等待，调度线程在收到第一个请求后再等待一个批处理窗口，然后取出全部排队的请求：
+ * 		1. 按地址冲突分轮：请求与先到达的某个请求区间重叠且其中至少一个是写时，排在那个请求所在轮的下一轮之后，
+ * 		   保证重叠区间上的读写顺序与到达顺序一致；区间不重叠的读写不受到达顺序限制
+ * 		2. 每轮的读写请求一起按C-LOOK排序：先服务磁头位置之后的请求(地址递增)，再回到最低地址继续递增
+ * 		3. 排序后相邻或重叠的读请求合并成一次传输，传输完成后按各自的区间拆分给等待的调用者；
+ * 		   首尾相接的写请求拼接成一次传输(同一轮的写互不重叠)
+ */
+public class DiskScheduler implements DiskBackend {
+
+	private volatile DiskBackend backend;
+
+	private final long windowNanos;
+
+	private final LinkedList<Request> queue = new LinkedList<>();
+
+	private final Thread dispatcher;
+
+	private volatile boolean running = true;
+
+	private long head = 0L;     // 磁头位置，即上一次传输的结束地址
+
+	private long requests = 0L;
+
+	private long transfers = 0L;
+
+	private long totalQueueNanos = 0L;
+
+	private long maxQueueNanos = 0L;
+
+	/**
+	 * @param backend      实际执行读写的后端
+	 * @param windowMicros 批处理窗口(微秒)，为0时不等待，只合并已经排队的请求
+	 */
+	public DiskScheduler(DiskBackend backend, int windowMicros) {
+		this.backend = backend;
+		this.windowNanos = windowMicros * 1000L;
+		this.dispatcher = new Thread(this::dispatch, "disk-scheduler");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	@Override
+	public long size() {
+		return backend.size();
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int off, int len) throws IOException {
+		submit(new Request(false, position, dest, off, len));
+	}
+
+	@Override
+	public void write(long position, byte[] src, int off, int len) throws IOException {
+		submit(new Request(true, position, src, off, len));
+	}
+
+	/**
+	 * 一次提交多个写请求再等待全部完成，这些写进入同一批，可以一起排序和合并
+	 * 写合并缓冲区刷盘时使用，逐个调用write的话每个写都要等上一个完成才能排队
+	 *
+	 * @param extents 起始地址 -> 数据
+	 */
+	public void writeAll(Map<Long, byte[]> extents) throws IOException {
+		List<Request> requests = new ArrayList<>();
+		for (Map.Entry<Long, byte[]> extent : extents.entrySet()) {
+			requests.add(new Request(true, extent.getKey(), extent.getValue(), 0, extent.getValue().length));
+		}
+		enqueue(requests);
+		IOException failure = null;
+		for (Request request : requests) {
+			try {
+				await(request);
+			} catch (IOException e) {
+				failure = failure == null ? e : failure;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * 切换下层后端，之后开始的传输发往新的后端
+	 */
+	void setBackend(DiskBackend backend) {
+		this.backend = backend;
+	}
+
+	@Override
+	public boolean isZero(long position, int len) throws IOException {
+		return backend.isZero(position, len);
+	}
+
+	/**
+	 * 调用者的写请求在返回前已经执行，直接刷后端即可
+	 */
+	@Override
+	public void force() throws IOException {
+		backend.force();
+	}
+
+	/**
+	 * 处理完已经排队的请求后停止调度线程
+	 */
+	public void shutdown() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	public synchronized long getTransfers() {
+		return transfers;
+	}
+
+	/**
+	 * @return 合并比，即请求数/实际传输次数
+	 */
+	public synchronized double getMergeRatio() {
+		return transfers == 0 ? 0.0 : (double) requests / transfers;
+	}
+
+	/**
+	 * @return 请求从提交到开始传输的平均排队时间(纳秒)
+	 */
+	public synchronized double getAvgQueueNanos() {
+		return requests == 0 ? 0.0 : (double) totalQueueNanos / requests;
+	}
+
+	public synchronized long getMaxQueueNanos() {
+		return maxQueueNanos;
+	}
+
+	public synchronized void resetStats() {
+		requests = 0L;
+		transfers = 0L;
+		totalQueueNanos = 0L;
+		maxQueueNanos = 0L;
+	}
+
+	private void submit(Request request) throws IOException {
+		List<Request> single = new ArrayList<>();
+		single.add(request);
+		enqueue(single);
+		await(request);
+	}
+
+	private synchronized void enqueue(List<Request> requests) throws IOException {
+		if (!running) {
+			throw new IOException("磁盘调度器已停止");
+		}
+		queue.addAll(requests);
+		notifyAll();
+	}
+
+	private void await(Request request) throws IOException {
+		try {
+			request.done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	private void dispatch() {
+		while (true) {
+			synchronized (this) {
+				while (queue.isEmpty() && running) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (queue.isEmpty()) {
+					return;
+				}
+			}
+			if (windowNanos > 0 && running) {
+				LockSupport.parkNanos(windowNanos);
+			}
+			List<Request> batch;
+			synchronized (this) {
+				batch = new ArrayList<>(queue);
+				queue.clear();
+			}
+			for (List<Request> round : rounds(batch)) {
+				serveRound(round);
+			}
+		}
+	}
+
+	/**
+	 * 按到达顺序给请求分轮：与先到达的请求区间重叠且其中至少一个是写时，排在那个请求的下一轮或更后；
+	 * 不冲突的请求放在第0轮，同一轮内的写互不重叠，读也不与写重叠
+	 */
+	private static List<List<Request>> rounds(List<Request> batch) {
+		List<List<Request>> rounds = new ArrayList<>();
+		int[] round = new int[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+			Request request = batch.get(i);
+			for (int k = 0; k < i; k++) {
+				Request earlier = batch.get(k);
+				if ((request.write || earlier.write) && request.overlaps(earlier)) {
+					round[i] = Math.max(round[i], round[k] + 1);
+				}
+			}
+			while (rounds.size() <= round[i]) {
+				rounds.add(new ArrayList<>());
+			}
+			rounds.get(round[i]).add(request);
+		}
+		return rounds;
+	}
+
+	private void serveRound(List<Request> round) {
+		// C-LOOK：磁头之后的请求按地址递增排在前面，其余请求按地址递增排在后面
+		final long from = head;
+		round.sort((a, b) -> {
+			boolean aAhead = a.position >= from;
+			boolean bAhead = b.position >= from;
+			if (aAhead != bAhead) {
+				return aAhead ? -1 : 1;
+			}
+			return Long.compare(a.position, b.position);
+		});
+		int i = 0;
+		while (i < round.size()) {
+			Request first = round.get(i);
+			long start = first.position;
+			long end = start + first.len;
+			int j = i + 1;
+			while (j < round.size() && round.get(j).write == first.write && mergeable(round.get(j), start, end)) {
+				end = Math.max(end, round.get(j).position + round.get(j).len);
+				j++;
+			}
+			transfer(round.subList(i, j), start, end);
+			i = j;
+		}
+	}
+
+	/**
+	 * 读与当前传输相邻或重叠时合并，写只在首尾相接时合并
+	 */
+	private static boolean mergeable(Request next, long start, long end) {
+		return next.write ? next.position == end : next.position <= end && next.position >= start;
+	}
+
+	private void transfer(List<Request> merged, long start, long end) {
+		record(merged);
+		try {
+			Request first = merged.get(0);
+			if (first.write && merged.size() == 1) {
+				backend.write(first.position, first.data, first.off, first.len);
+			} else if (first.write) {
+				byte[] buffer = new byte[(int) (end - start)];
+				for (Request request : merged) {
+					System.arraycopy(request.data, request.off, buffer, (int) (request.position - start), request.len);
+				}
+				backend.write(start, buffer, 0, buffer.length);
+			} else {
+				byte[] buffer = new byte[(int) (end - start)];
+				backend.read(start, buffer, 0, buffer.length);
+				for (Request request : merged) {
+					System.arraycopy(buffer, (int) (request.position - start), request.data, request.off, request.len);
+				}
+			}
+			for (Request request : merged) {
+				request.done.complete(null);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Request request : merged) {
+				request.done.completeExceptionally(e);
+			}
+		}
+		head = end;
+	}
+
+	private synchronized void record(List<Request> transfer) {
+		long now = System.nanoTime();
+		transfers++;
+		for (Request request : transfer) {
+			long queued = now - request.submitNanos;
+			requests++;
+			totalQueueNanos += queued;
+			maxQueueNanos = Math.max(maxQueueNanos, queued);
+		}
+	}
+
+	private static class Request {
+
+		private final boolean write;
+
+		private final long position;
+
+		private final byte[] data;
+
+		private final int off;
+
+		private final int len;
+
+		private final long submitNanos = System.nanoTime();
+
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Request(boolean write, long position, byte[] data, int off, int len) {
+			this.write = write;
+			this.position = position;
+			this.data = data;
+			this.off = off;
+			this.len = len;
+		}
+
+		boolean overlaps(Request other) {
+			return position < other.position + other.len && other.position < position + len;
+		}
+	}
+
+}
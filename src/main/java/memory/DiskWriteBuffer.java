@@ -0,0 +1,271 @@
+package memory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 写合并缓冲区，位于存储后端(或I/O调度器)之前
+ *
+ * 写请求只进入缓冲区，按地址保存为互不相邻的脏区间，相邻或重叠的写合并成一个区间，每个区间刷盘时只需一次传输
+ * 以下任一条件满足时刷盘：
+ * 		1. 缓冲的字节数达到容量
+ * 		2. 最早的一次未刷盘写入超过刷盘间隔(由后台线程检查)
+ * 		3. 显式调用force()
+ * 读请求与脏区间重叠时保证读到最新数据，有两种方式：
+ * 		1. 默认：先读后端，再用脏区间覆盖结果，不触发刷盘
+ * 		2. flushBeforeRead：先把重叠的脏区间写到后端，再从后端读，后端看到的读写顺序与调用顺序一致
+ */
+public class DiskWriteBuffer implements DiskBackend {
+
+	private volatile DiskBackend target;
+
+	private final int capacity;
+
+	private final long flushNanos;
+
+	private final boolean flushBeforeRead;
+
+	private final TreeMap<Long, byte[]> dirty = new TreeMap<>();    // 起始地址 -> 数据，区间互不重叠也不相邻
+
+	private int dirtyBytes = 0;
+
+	private long oldestDirtyNanos = 0L;     // 最早的未刷盘写入时间，缓冲区为空时无意义
+
+	private final Thread flusher;
+
+	private volatile boolean running = true;
+
+	private long writes = 0L;
+
+	private long transfers = 0L;
+
+	private long flushes = 0L;
+
+	/**
+	 * @param target          实际执行读写的后端
+	 * @param capacity        缓冲区容量(字节)
+	 * @param flushMillis     刷盘间隔(毫秒)，为0时不做定时刷盘
+	 * @param flushBeforeRead 读请求与脏区间重叠时是否先刷盘
+	 */
+	public DiskWriteBuffer(DiskBackend target, int capacity, int flushMillis, boolean flushBeforeRead) {
+		this.target = target;
+		this.capacity = capacity;
+		this.flushNanos = flushMillis * 1000_000L;
+		this.flushBeforeRead = flushBeforeRead;
+		if (flushMillis > 0) {
+			this.flusher = new Thread(this::flushPeriodically, "disk-write-flusher");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		} else {
+			this.flusher = null;
+		}
+	}
+
+	@Override
+	public long size() {
+		return target.size();
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int off, int len) throws IOException {
+		synchronized (this) {
+			if (overlaps(position, len)) {
+				if (!flushBeforeRead) {
+					// 在锁内读后端并覆盖，避免读后端和覆盖之间区间被刷盘而读到旧数据
+					target.read(position, dest, off, len);
+					overlay(position, dest, off, len);
+					return;
+				}
+				flush(position, len);
+			}
+		}
+		// 区间内没有未刷盘的数据，不需要持有锁读后端
+		target.read(position, dest, off, len);
+	}
+
+	@Override
+	public synchronized boolean isZero(long position, int len) throws IOException {
+		return !overlaps(position, len) && target.isZero(position, len);
+	}
+
+	@Override
+	public synchronized void write(long position, byte[] src, int off, int len) throws IOException {
+		if (len <= 0) {
+			return;
+		}
+		if (dirty.isEmpty()) {
+			oldestDirtyNanos = System.nanoTime();
+		}
+		long start = position;
+		long end = position + len;
+		// 与新区间重叠或相邻的已有区间，合并后删除
+		Map.Entry<Long, byte[]> floor = dirty.floorEntry(start);
+		if (floor != null && floor.getKey() + floor.getValue().length >= start) {
+			start = floor.getKey();
+		}
+		List<Map.Entry<Long, byte[]>> merged = new ArrayList<>(dirty.subMap(start, true, end, true).entrySet());
+		for (Map.Entry<Long, byte[]> extent : merged) {
+			end = Math.max(end, extent.getKey() + extent.getValue().length);
+		}
+		byte[] data = new byte[(int) (end - start)];
+		for (Map.Entry<Long, byte[]> extent : merged) {
+			System.arraycopy(extent.getValue(), 0, data, (int) (extent.getKey() - start), extent.getValue().length);
+			dirty.remove(extent.getKey());
+			dirtyBytes -= extent.getValue().length;
+		}
+		// 新数据最后写入，覆盖旧数据
+		System.arraycopy(src, off, data, (int) (position - start), len);
+		dirty.put(start, data);
+		dirtyBytes += data.length;
+		writes++;
+		if (dirtyBytes >= capacity) {
+			flush(Long.MIN_VALUE, -1);
+		}
+	}
+
+	/**
+	 * 刷出全部脏区间并刷后端
+	 */
+	@Override
+	public void force() throws IOException {
+		synchronized (this) {
+			flush(Long.MIN_VALUE, -1);
+		}
+		target.force();
+	}
+
+	/**
+	 * 刷盘后停止后台线程，之后的写入只能通过force()或容量触发刷盘
+	 */
+	public void shutdown() throws IOException {
+		running = false;
+		if (flusher != null) {
+			flusher.interrupt();
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		force();
+	}
+
+	/**
+	 * 刷出全部脏区间后切换下层后端，用于开关I/O调度器
+	 */
+	synchronized void setTarget(DiskBackend target) throws IOException {
+		flush(Long.MIN_VALUE, -1);
+		this.target = target;
+	}
+
+	public synchronized int getDirtyBytes() {
+		return dirtyBytes;
+	}
+
+	public synchronized long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * @return 刷盘时实际发出的写传输次数
+	 */
+	public synchronized long getTransfers() {
+		return transfers;
+	}
+
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * @return 合并比，即写请求数/写传输次数
+	 */
+	public synchronized double getMergeRatio() {
+		return transfers == 0 ? 0.0 : (double) writes / transfers;
+	}
+
+	public synchronized void resetStats() {
+		writes = 0L;
+		transfers = 0L;
+		flushes = 0L;
+	}
+
+	private boolean overlaps(long position, int len) {
+		Map.Entry<Long, byte[]> floor = dirty.floorEntry(position);
+		if (floor != null && floor.getKey() + floor.getValue().length > position) {
+			return true;
+		}
+		Long next = dirty.higherKey(position);
+		return next != null && next < position + len;
+	}
+
+	private void overlay(long position, byte[] dest, int off, int len) {
+		Map.Entry<Long, byte[]> floor = dirty.floorEntry(position);
+		long from = floor == null ? position : floor.getKey();
+		for (Map.Entry<Long, byte[]> extent : dirty.subMap(from, true, position + len, false).entrySet()) {
+			long start = Math.max(position, extent.getKey());
+			long end = Math.min(position + len, extent.getKey() + extent.getValue().length);
+			if (start < end) {
+				System.arraycopy(extent.getValue(), (int) (start - extent.getKey()), dest, (int) (off + start - position), (int) (end - start));
+			}
+		}
+	}
+
+	/**
+	 * 按地址顺序写出与[position, position + len)重叠的脏区间，len < 0 表示全部区间，调用者需持有锁
+	 */
+	private void flush(long position, int len) throws IOException {
+		if (dirty.isEmpty()) {
+			return;
+		}
+		flushes++;
+		TreeMap<Long, byte[]> extents = new TreeMap<>();
+		for (Map.Entry<Long, byte[]> extent : dirty.entrySet()) {
+			byte[] data = extent.getValue();
+			if (len < 0 || (extent.getKey() + data.length > position && extent.getKey() < position + len)) {
+				extents.put(extent.getKey(), data);
+			}
+		}
+		DiskBackend lower = target;
+		if (lower instanceof DiskScheduler) {
+			// 一次提交全部区间，由调度器和同一批的读一起排序
+			((DiskScheduler) lower).writeAll(extents);
+		}
+		for (Map.Entry<Long, byte[]> extent : extents.entrySet()) {
+			byte[] data = extent.getValue();
+			if (!(lower instanceof DiskScheduler)) {
+				lower.write(extent.getKey(), data, 0, data.length);
+			}
+			transfers++;
+			dirtyBytes -= data.length;
+			dirty.remove(extent.getKey());
+		}
+		if (!dirty.isEmpty()) {
+			// 剩余区间的写入时间未知，保守地按现在重新计时
+			oldestDirtyNanos = System.nanoTime();
+		}
+	}
+
+	private void flushPeriodically() {
+		while (running) {
+			try {
+				Thread.sleep(Math.max(1L, flushNanos / 1000_000L / 2));
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this) {
+				if (!dirty.isEmpty() && System.nanoTime() - oldestDirtyNanos >= flushNanos) {
+					try {
+						flush(Long.MIN_VALUE, -1);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+package memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 事件跟踪：预先分配的多生产者环形缓冲区，MMU、Memory、Disk在地址转换、缺页缺段、换出、碎片整理和磁盘读写时写入定长的二进制记录
+ *
+ * 跟踪默认关闭，关闭时每个跟踪点只多读一次volatile字段；start()开启后随时可以stop()关闭
+ * 写入不加锁：生产者用AtomicLong取得序号，序号对容量取模得到槽位，写满后覆盖最早的记录
+ * 每个槽位有一个发布序号，写完后为序号+1；写入前生产者用CAS把它从更早的发布序号改为-(序号+1)占住槽位，
+ * 	相差整数圈的两个生产者落在同一槽位时只有一个能写：槽位已被更新的序号占住或发布时放弃本条(它本来就会被覆盖，计入getDropped)，
+ * 	被更早的序号占住时自旋等待那条写完(只写5个long)；因此字段不会被两个生产者交错写入
+ * 读取时前后两次发布序号相同且等于期望值才认为记录完整，因此dump可以和生产者并发进行，被覆盖或正在写入的记录被跳过
+ * 二进制格式见dump()，driver.TraceReader把转储文件转换成时间线和按段的汇总
+ */
+public class EventTrace {
+
+	public static int TRACE_CAPACITY = 1 << 16;     // 默认容量(记录数)，取不小于它的2的幂
+
+	private static final int MAGIC = 0x4D545243;    // "MTRC"
+
+	private static final int FIELDS = 5;    // 每条记录：时间戳、类型和段号、参数a、参数b、耗时
+
+	/**
+	 * 事件类型及参数含义，段号为-1表示与段无关
+	 */
+	public enum Type {
+		TRANSLATE,      // MMU按段读取：a为段内偏移，b为长度，带耗时
+		PAGE_FAULT,     // 缺页：a为虚页号，b为页框号，带耗时(从本次加载开始到页读入)
+		SEGMENT_FAULT,  // 缺段：a为分配到的段基址，b为段限长，带耗时
+		EVICT_FRAME,    // 页框被换出：段号为属主，a为虚页号，b为页框号
+		EVICT_SEGMENT,  // 段被换出或失效：a为段基址，b为段限长
+		COMPACT,        // 碎片整理：a为移动的字节数，b为移动的段数，带耗时
+		DISK_READ,      // 块缓存之下的磁盘读：a为磁盘地址，b为长度，带耗时
+		DISK_WRITE      // 磁盘写：a为磁盘地址，b为长度，带耗时
+	}
+
+	private static volatile EventTrace active;
+
+	private final int mask;
+
+	private final long[] records;
+
+	private final AtomicLongArray published;
+
+	private final AtomicLong cursor = new AtomicLong();
+
+	private EventTrace(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.records = new long[size * FIELDS];
+		this.published = new AtomicLongArray(size);
+	}
+
+	/**
+	 * 以TRACE_CAPACITY为容量开启跟踪
+	 */
+	public static EventTrace start() {
+		return start(TRACE_CAPACITY);
+	}
+
+	/**
+	 * 开启跟踪，之前的跟踪(如果有)被丢弃
+	 *
+	 * @param capacity 缓冲区容量(记录数)
+	 * @return 跟踪缓冲区，停止后仍然可以转储
+	 */
+	public static EventTrace start(int capacity) {
+		EventTrace trace = new EventTrace(capacity);
+		active = trace;
+		return trace;
+	}
+
+	/**
+	 * 关闭跟踪，返回关闭前的缓冲区
+	 */
+	public static EventTrace stop() {
+		EventTrace trace = active;
+		active = null;
+		return trace;
+	}
+
+	public static boolean isEnabled() {
+		return active != null;
+	}
+
+	/**
+	 * @return 跟踪开启时的当前时间，作为emit的起始时间；关闭时返回0，不调用System.nanoTime()
+	 */
+	public static long begin() {
+		return active == null ? 0L : System.nanoTime();
+	}
+
+	/**
+	 * 写入一条记录
+	 *
+	 * @param begin begin()的返回值，耗时 = 当前时间 - begin，为0表示瞬时事件
+	 */
+	public static void emit(Type type, int segNO, long a, long b, long begin) {
+		EventTrace trace = active;
+		if (trace == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		trace.record(begin == 0L ? now : begin, type, segNO, a, b, begin == 0L ? 0L : now - begin);
+	}
+
+	private void record(long timestamp, Type type, int segNO, long a, long b, long duration) {
+		long seq = cursor.getAndIncrement();
+		int slot = (int) (seq & mask);
+		int base = slot * FIELDS;
+		if (!claim(slot, seq)) {
+			return;
+		}
+		VarHandle.storeStoreFence();
+		records[base] = timestamp;
+		records[base + 1] = ((long) type.ordinal() << 32) | (segNO & 0xFFFFFFFFL);
+		records[base + 2] = a;
+		records[base + 3] = b;
+		records[base + 4] = duration;
+		published.lazySet(slot, seq + 1);
+	}
+
+	/**
+	 * 占住槽位：发布序号为正数时表示已写完的序号+1，为负数时表示正在写入的序号-(seq+1)
+	 *
+	 * @return 是否占住；槽位已被更新的序号占住或发布时返回false，本条记录放弃
+	 */
+	private boolean claim(int slot, long seq) {
+		while (true) {
+			long state = published.get(slot);
+			long owner = state < 0 ? -state - 1 : state - 1;
+			if (owner > seq) {
+				return false;
+			}
+			if (state < 0) {
+				// 更早的一圈正在写入这个槽位
+				Thread.onSpinWait();
+				continue;
+			}
+			if (published.compareAndSet(slot, state, -(seq + 1))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return 已写入的记录总数，包括被覆盖的记录
+	 */
+	public long getEmitted() {
+		return cursor.get();
+	}
+
+	/**
+	 * @return 因缓冲区写满而被覆盖的记录数
+	 */
+	public long getDropped() {
+		return Math.max(0L, cursor.get() - (mask + 1));
+	}
+
+	/**
+	 * @return 缓冲区中完整的记录，按写入顺序排列
+	 */
+	public List<Event> events() {
+		long end = cursor.get();
+		long start = Math.max(0L, end - (mask + 1));
+		List<Event> events = new ArrayList<>((int) (end - start));
+		for (long seq = start; seq < end; seq++) {
+			int slot = (int) (seq & mask);
+			int base = slot * FIELDS;
+			if (published.get(slot) != seq + 1) {
+				continue;
+			}
+			long timestamp = records[base];
+			long typeAndSeg = records[base + 1];
+			long a = records[base + 2];
+			long b = records[base + 3];
+			long duration = records[base + 4];
+			VarHandle.loadLoadFence();
+			if (published.get(slot) != seq + 1) {
+				continue;   // 读取期间被覆盖
+			}
+			events.add(new Event(timestamp, Type.values()[(int) (typeAndSeg >>> 32)], (int) typeAndSeg, a, b, duration));
+		}
+		return events;
+	}
+
+	/**
+	 * 转储到文件，格式(大端)：
+	 * 		int 魔数"MTRC"，int 记录数，long 被覆盖的记录数，
+	 * 		每条记录 long 时间戳(纳秒)，int 类型，int 段号，long a，long b，long 耗时(纳秒)
+	 *
+	 * @return 写入的记录数
+	 */
+	public int dump(Path path) throws IOException {
+		List<Event> events = events();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(events.size());
+			out.writeLong(getDropped());
+			for (Event event : events) {
+				out.writeLong(event.timestamp);
+				out.writeInt(event.type.ordinal());
+				out.writeInt(event.segNO);
+				out.writeLong(event.a);
+				out.writeLong(event.b);
+				out.writeLong(event.duration);
+			}
+		}
+		return events.size();
+	}
+
+	/**
+	 * 读取dump()写出的文件
+	 */
+	public static List<Event> read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("不是事件跟踪文件: " + path);
+			}
+			int count = in.readInt();
+			in.readLong();
+			List<Event> events = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				long timestamp = in.readLong();
+				Type type = Type.values()[in.readInt()];
+				int segNO = in.readInt();
+				events.add(new Event(timestamp, type, segNO, in.readLong(), in.readLong(), in.readLong()));
+			}
+			return events;
+		}
+	}
+
+	/**
+	 * 一条事件记录
+	 */
+	public static class Event {
+
+		private final long timestamp;
+
+		private final Type type;
+
+		private final int segNO;
+
+		private final long a;
+
+		private final long b;
+
+		private final long duration;
+
+		public Event(long timestamp, Type type, int segNO, long a, long b, long duration) {
+			this.timestamp = timestamp;
+			this.type = type;
+			this.segNO = segNO;
+			this.a = a;
+			this.b = b;
+			this.duration = duration;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public int getSegNO() {
+			return segNO;
+		}
+
+		public long getA() {
+			return a;
+		}
+
+		public long getB() {
+			return b;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+	}
+
+}
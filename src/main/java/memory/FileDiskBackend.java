@@ -0,0 +1,125 @@
+package memory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 以磁盘镜像文件为存储的后端，文件不存在时按Disk.DEFAULT_LAYOUT初始化
+ */
+public class FileDiskBackend implements DiskBackend {
+
+	private final File disk_device;
+
+	private final long size;
+
+	private FileChannel channel;     // 读写通道，按位置读写是线程安全的，多个线程共用一个打开的通道
+
+	private boolean closed = false;
+
+	/**
+	 * @param path 磁盘镜像文件路径
+	 * @param size 磁盘大小(字节)
+	 */
+	public FileDiskBackend(String path, long size) {
+		this.disk_device = new File(path);
+		this.size = size;
+		synchronized (FileDiskBackend.class) {
+			if (!disk_device.exists()) {
+				format();
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * 按位置读取(FileChannel#read(ByteBuffer, long))，不依赖也不改变通道的读写位置
+	 */
+	@Override
+	public void read(long position, byte[] dest, int off, int len) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(dest, off, len);
+		FileChannel channel = channel();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - off) < 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 按位置整块写入(FileChannel#write(ByteBuffer, long))，通道保持打开，不再每次写入都重新打开文件
+	 */
+	@Override
+	public void write(long position, byte[] src, int off, int len) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(src, off, len);
+		FileChannel channel = channel();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position() - off);
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		channel().force(false);
+	}
+
+	/**
+	 * 关闭读写通道，释放文件描述符
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private synchronized FileChannel channel() throws IOException {
+		if (closed) {
+			throw new IOException("磁盘镜像已关闭: " + disk_device);
+		}
+		if (channel == null || !channel.isOpen()) {
+			channel = FileChannel.open(disk_device.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		return channel;
+	}
+
+	private void format() {
+		BufferedWriter writer = null;
+		try {
+			disk_device.createNewFile();
+			// 初始化磁盘
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(disk_device)));
+			char[] dataUnit = new char[1024];
+			long units = size / 1024;
+			for (int[] region : Disk.DEFAULT_LAYOUT) {
+				Arrays.fill(dataUnit, (char) region[1]);
+				for (int i = 0; i < region[0] / 1024 && units > 0; i++, units--) {
+					writer.write(dataUnit);
+				}
+			}
+			Arrays.fill(dataUnit, (char) 0b00000000);
+			for (; units > 0; units--) {
+				writer.write(dataUnit);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package memory;
+
+/**
+ * 物理页框分配位图，每个页框占一位，1表示已分配
+ *
+ * 查找空闲页框时逐个long取反后用Long.numberOfTrailingZeros定位最低的0位，一次跳过64个已分配的页框；
+ * 从上次分配的位置继续查找(next-fit)，避免每次都从头扫描已经分配满的前半部分
+ *
+ * 所有调用都发生在缺页、换出或清空的路径上，已经持有Memory的锁，位图本身不再加锁
+ *
+ * 位图按GROUP_WORDS个long分组，未分配的组视为全部空闲，组在其中第一次有页框被分配时才分配，主存很大而只用到一部分时位图也很小
+ */
+class FrameAllocator {
+
+	private final int frames;
+
+	static final int GROUP_WORDS = 1024;    // 每组的long数，一组对应64K个页框
+
+	private long[][] groups;
+
+	private final int words;    // 位图的long数
+
+	private int cursor = 0;     // 下一次查找开始的long下标
+
+	private int used = 0;       // 位图中已分配的页框数
+
+	/**
+	 * @param frames 页框数
+	 */
+	FrameAllocator(int frames) {
+		this.frames = frames;
+		this.words = (frames + 63) / 64;
+		reset();
+	}
+
+	/**
+	 * 全部页框置为空闲，最后一个long中超出页框数的位视为已分配
+	 */
+	private void reset() {
+		groups = new long[(words + GROUP_WORDS - 1) / GROUP_WORDS][];
+		if (frames % 64 != 0) {
+			setWord(words - 1, -1L << (frames % 64));
+		}
+	}
+
+	private long word(int index) {
+		long[] group = groups[index / GROUP_WORDS];
+		return group == null ? 0L : group[index % GROUP_WORDS];
+	}
+
+	private void setWord(int index, long value) {
+		long[] group = groups[index / GROUP_WORDS];
+		if (group == null) {
+			if (value == 0L) {
+				return;
+			}
+			group = groups[index / GROUP_WORDS] = new long[GROUP_WORDS];
+		}
+		group[index % GROUP_WORDS] = value;
+	}
+
+	/**
+	 * @return 位图已分配的字节数
+	 */
+	long allocatedBytes() {
+		long bytes = 0L;
+		for (long[] group : groups) {
+			if (group != null) {
+				bytes += (long) group.length * Long.BYTES;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return 空闲页框号，没有空闲页框时返回-1
+	 */
+	int alloc() {
+		int[] one = new int[1];
+		return scan(one, 1) == 1 ? one[0] : -1;
+	}
+
+	/**
+	 * 分配count个连续的页框，用于一次读入多个连续虚页
+	 *
+	 * @return 第一个页框号，没有足够长的连续空闲区间时返回-1
+	 */
+	int allocRun(int count) {
+		if (count == 1) {
+			return alloc();
+		}
+		int run = 0;
+		for (int frameNO = 0; frameNO < frames; frameNO++) {
+			long word = word(frameNO >>> 6);
+			if (word == -1L) {
+				// 整个long已分配，跳到下一个long
+				run = 0;
+				frameNO = (frameNO | 63);
+				continue;
+			}
+			run = (word & (1L << frameNO)) == 0 ? run + 1 : 0;
+			if (run == count) {
+				int first = frameNO - count + 1;
+				for (int i = first; i <= frameNO; i++) {
+					setWord(i >>> 6, word(i >>> 6) | 1L << i);
+				}
+				used += count;
+				return first;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 将页框标记为已分配，用于替换出的页框被直接复用，重复标记没有影响
+	 */
+	void take(int frameNO) {
+		if ((word(frameNO >>> 6) & (1L << frameNO)) == 0) {
+			setWord(frameNO >>> 6, word(frameNO >>> 6) | 1L << frameNO);
+			used++;
+		}
+	}
+
+	void free(int frameNO) {
+		if ((word(frameNO >>> 6) & (1L << frameNO)) != 0) {
+			setWord(frameNO >>> 6, word(frameNO >>> 6) & ~(1L << frameNO));
+			used--;
+		}
+	}
+
+	/**
+	 * @return 空闲页框数
+	 */
+	int freeFrames() {
+		return frames - used;
+	}
+
+	/**
+	 * 释放全部页框
+	 */
+	void clear() {
+		reset();
+		cursor = 0;
+		used = 0;
+	}
+
+	/**
+	 * 从cursor开始查找最多max个空闲页框，标记为已分配并写入dest
+	 *
+	 * @return 找到的页框数
+	 */
+	private int scan(int[] dest, int max) {
+		int found = 0;
+		for (int n = 0; n < words && found < max; n++) {
+			int index = (cursor + n) % words;
+			long word = word(index);
+			long free = ~word;
+			while (free != 0 && found < max) {
+				int bit = Long.numberOfTrailingZeros(free);
+				free &= free - 1;
+				word |= 1L << bit;
+				dest[found++] = index * 64 + bit;
+			}
+			setWord(index, word);
+			if (found == max) {
+				cursor = index;
+			}
+		}
+		used += found;
+		return found;
+	}
+
+}
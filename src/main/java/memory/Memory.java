@@ -3,11 +3,23 @@ package memory;
 import transformer.Transformer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 内存抽象类
  */
-public class Memory {
+public class Memory implements AutoCloseable {
 
     /*
      * ------------------------------------------
@@ -20,7 +32,8 @@ public class Memory {
      *
      * 请实现三种模式下的存储管理方案：
      * 实模式：
-     * 		无需管理，该情况下不好判断数据是否已经加载到内存(除非给每个字节建立有效位)，干脆每次都重新读Disk(地址空间不会超过1 MB)
+     * 		物理地址等于磁盘地址，按REAL_CHUNK_SIZE_B大小的块建立有效位，读取时只从Disk加载无效的块，之后直接从内存读取；
+     * 		磁盘被写入时对应的块失效，超出主存范围的地址直接读Disk
      * 分段：
      *      最先适应 -> 空间不足则判断总剩余空间是否足够 -> 足够则进行碎片整理，将内存数据压缩
      * -> 不足则采用最近使用算法LRU直到总剩余空间足够 -> 碎片整理
@@ -31,140 +44,1760 @@ public class Memory {
 
     public static boolean PAGE = false;
 
-    public static int MEM_SIZE_B = 32 * 1024 * 1024;      // 主存大小 32 MB
+    public static long MEM_SIZE_B = 32 * 1024 * 1024;      // 主存大小 32 MB，可以超过2G，主存按块在第一次写入时分配
     // 32*1024*1024算出来是32M，故这32M应该是32M个最小可寻址单元，每个单元存储1B，所以注释说主存在校32MB。32M个最小可寻址单元只要25位就可以了
 
     public static int PAGE_SIZE_B = 1 * 1024;      // 页大小 1 KB，页内偏移10位
-    public static ArrayList<SegDescriptor> segTbl = new ArrayList<>(); // 改private为public
-    public static PageItem[] pageTbl = new PageItem[Disk.DISK_SIZE_B / Memory.PAGE_SIZE_B]; // 页表大小为2^17  128K // 那么虚页号应该有17位啊 // 改private为public
-    private static char[] memory = new char[MEM_SIZE_B]; // 一个char占据一个字节的空间，没毛病
-    private static ReversedPageItem[] reversedPageTbl = new ReversedPageItem[Memory.MEM_SIZE_B / Memory.PAGE_SIZE_B]; // 反向页表大小为2^15   32K
-    private static Memory memoryInstance = new Memory();
+
+    public static int REAL_CHUNK_SIZE_B = 4 * 1024;      // 实模式有效位的粒度 4 KB
+
+    /*
+     * 段页式下按缺页频率(PFF)动态调整每个段的页框配额：
+     * 两次缺页之间该段的访问次数不超过PFF_LOWER_INTERVAL，说明缺页过于频繁，配额增加PFF_GROW_STEP个页框；
+     * 两次缺页之间的访问次数超过PFF_UPPER_INTERVAL，说明工作集已经装入，配额减半并回收多余页框；
+     * 段超过IDLE_WINDOW次全局访问未被使用则视为空闲，其他段缺页且无空闲页框时优先回收空闲段的页框
+     */
+    public static int PFF_LOWER_INTERVAL = 8;
+
+    public static int PFF_UPPER_INTERVAL = 1024;
+
+    public static int PFF_GROW_STEP = 16;
+
+    public static long IDLE_WINDOW = 64 * 1024;
+
+    public static int FAULT_BATCH_PAGES = 64;   // 一次跨页读取中合并处理的最大页数，其中连续缺失的页用一次磁盘读读入
+
+    /*
+     * 后台回收：startReclaimer开启后，空闲页框(段页式)或空闲段空间(分段)低于低水位时唤醒回收线程，
+     * 按替换策略提前换出，直到高于高水位；缺页时通常直接取到空闲页框，池子耗尽时仍在缺页路径上直接回收
+     */
+    public static double RECLAIM_LOW_WATERMARK = 0.02;     // 占页框总数(主存大小)的比例
+
+    public static double RECLAIM_HIGH_WATERMARK = 0.05;
+
+    public static int RECLAIM_BATCH = 64;   // 回收线程每次持有锁时最多换出的页框(段)数，之后让出锁
+
+    /*
+     * 分段模式下的按需分块加载：开启后缺段时只为段分配内存区间，不立即读入整段，
+     * 段按SEG_CHUNK_SIZE_B划分成块，用位图记录哪些块已经在内存，读取时只等待所需的块；
+     * BACKGROUND_SEGMENT_FILL开启时由后台线程以低优先级逐块补齐剩余部分，否则只在访问时按需加载
+     */
+    public static boolean LAZY_SEGMENT_LOAD = false;
+
+    public static int SEG_CHUNK_SIZE_B = 64 * 1024;      // 分块大小 64 KB
+
+    public static boolean BACKGROUND_SEGMENT_FILL = true;
+
+    /*
+     * 分段模式下的预热：开启后段描述符以不在内存的状态装入(alloc_seg_force)或段失效(invalid)时，段被排入后台队列，
+     * 由补齐线程以低优先级分配内存区间并逐块读入，调用者不等待；预热不换出其他段也不做碎片整理，放不下时放弃
+     * 预热中的段按分块加载的方式管理，第一次读取只等待所需的块，即使读取先于预热开始、LAZY_SEGMENT_LOAD关闭也是如此；
+     * 段在预热完成前被清除、失效或换出时停止
+     */
+    public static boolean PROACTIVE_SEGMENT_LOAD = false;
+
+    /*
+     * 大段并行加载：一次加载的长度达到PARALLEL_LOAD_THRESHOLD_B时拆分成SEGMENT_LOAD_THREADS个区间，
+     * 由加载线程池按位置并发读入内存数组中互不重叠的区域，全部区间完成后才置段的有效位
+     */
+    public static int PARALLEL_LOAD_THRESHOLD_B = 4 * 1024 * 1024;      // 4 MB
+
+    public static int SEGMENT_LOAD_THREADS = 4;
+
+    private static ExecutorService segmentLoaders;
+
+    private static int segmentLoaderThreads = 0;   // segmentLoaders当前的线程数，SEGMENT_LOAD_THREADS改变后重建线程池
+
+    private static ExecutorService segmentFiller = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "segment-filler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private static ScheduledExecutorService deduper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "frame-dedup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // 默认实例沿用原有的静态接口：工作模式随SEGMENT和PAGE变化，主存和页大小取MEM_SIZE_B和PAGE_SIZE_B，磁盘为Disk.getDisk()
+    private static Memory memoryInstance = new Memory(Disk.getDisk(), MEM_SIZE_B, PAGE_SIZE_B, false, false, true);
+
+    private final Disk disk;
+
+    private final int pageSize;
+
+    private final boolean segment;
+
+    private final boolean page;
+
+    private final boolean legacy;   // 是否为默认实例
+
+    private boolean ownsDisk = false;   // 磁盘是否由Builder为本实例创建，是则随实例关闭
+
+    private ArrayList<SegDescriptor> segTbl = new ArrayList<>();
+
+    private final PageItem[][] pageTbl; // 页表大小为 磁盘大小/页大小，默认2^17  128K；两级，每PAGE_DIR_SIZE项一组，组在第一次访问时分配
+
+    private static final int PAGE_DIR_SIZE = 4096;
+
+    private final PhysicalMemory memory; // 一个char占据一个字节的空间，没毛病；按long地址访问，分块懒分配
+
+    private final long memSize;
+
+    private ReversedPageItem[][] reversedPageTbl; // 反向页表大小为 主存大小/页大小，默认2^15   32K；按主存的块分组，组在其中的页框第一次被使用时分配
+
+    private final int frameCount;       // 页框数
+
+    private final int framesPerGroup;   // 反向页表每组的页框数，即主存一块中的页框数
+
+    private final FrameAllocator frameAllocator;    // 页框分配位图，与reversedPageTbl的isValid保持一致
+
+    private final BitSet pinned = new BitSet();     // loadPages执行期间已确定的页框，不能被替换
+
+    private int runNext = 0;    // loadPages为连续缺页预留的连续页框[runNext, runEnd)，allocFrame按顺序取用
+
+    private int runEnd = 0;
+
+    private int zeroFrame = -1;     // 全0虚页共享的只读页框，第一次映射全0虚页时分配，不出现在反向页表中
+
+    private long zeroPageFaults = 0L;   // 映射到零页框、没有读磁盘的缺页次数
+
+    private long zeroPageCopies = 0L;   // 写入零页时分配私有页框的次数
+
+    private long framesSaved = 0L;      // 因内容去重而共享页框的虚页数，即当前节省的页框数
+
+    private long dedupMerges = 0L;      // 累计合并的页框数
+
+    private long sharedCopies = 0L;     // 写入共享页框时复制出私有页框的次数
+
+    private ScheduledFuture<?> dedupTask;
+
+    private Thread reclaimer;
+
+    private volatile boolean reclaiming = false;
+
+    private long backgroundReclaims = 0L;   // 回收线程换出的页框(段)数
+
+    private long directReclaims = 0L;       // 缺页(缺段)路径上换出的页框(段)数
+
+    private long warmedSegments = 0L;       // 由预热分配了内存区间的段数
+
+    private CompressedSwap swap;    // 压缩交换层，为null表示未开启
+
+    private long refClock = 0L;   // 访问计数，作为LRU时间戳和PFF的逻辑时钟
+
+    private long totalPageFaults = 0L;
+
+    private long totalSegmentFaults = 0L;
+
+    private BitSet realChunks;      // 实模式下各块是否已从磁盘加载
+
+    private final int realChunkSize;
+
+    private long realChunkLoads = 0L;
+
     Transformer t = new Transformer();
 
-    private Memory() {
+    private Memory(Disk disk, long memSize, int pageSize, boolean segment, boolean page, boolean legacy) {
+        this.disk = disk;
+        this.pageSize = pageSize;
+        this.segment = segment;
+        this.page = page;
+        this.legacy = legacy;
+        this.memSize = memSize;
+        this.memory = new PhysicalMemory(memSize, pageSize);
+        this.pageTbl = new PageItem[(int) ((disk.getSize() / pageSize + PAGE_DIR_SIZE - 1) / PAGE_DIR_SIZE)][];
+        this.frameCount = frames();
+        this.framesPerGroup = memory.chunkSize() / pageSize;
+        this.reversedPageTbl = new ReversedPageItem[(frameCount + framesPerGroup - 1) / framesPerGroup][];
+        this.frameAllocator = new FrameAllocator(frames());
+        this.realChunkSize = REAL_CHUNK_SIZE_B;
+        this.realChunks = new BitSet();
+        disk.addWriteListener(this::invalidRealChunks);
+        disk.addWriteListener(this::invalidZeroPages);
+        disk.addWriteListener(this::invalidSwap);
+    }
+
+    public static Memory getMemory() {
+        return memoryInstance;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean isSegment() {
+        return legacy ? SEGMENT : segment;
+    }
+
+    public boolean isPage() {
+        return legacy ? PAGE : page;
+    }
+
+    public long getMemSize() {
+        return memSize;
+    }
+
+    /**
+     * @return 主存中实际分配了堆内存的字节数，未被写入过的块不占用内存
+     */
+    public long getAllocatedBytes() {
+        return memory.allocatedBytes();
+    }
+
+    /**
+     * @return 反向页表和页框分配位图已分配的字节数(按每个引用8字节估算，不含表项对象)，与主存一样随页框的使用增长
+     */
+    public synchronized long getFrameTableBytes() {
+        long bytes = frameAllocator.allocatedBytes();
+        for (ReversedPageItem[] group : reversedPageTbl) {
+            if (group != null) {
+                bytes += (long) group.length * 8;
+            }
+        }
+        return bytes;
+    }
+
+    private int frames() {
+        return (int) (memSize / pageSize);
+    }
+
+    /**
+     * 分段模式下段只能放在主存的前2G：段描述符中的基址为32位，按int解析
+     */
+    private int segmentArea() {
+        return (int) Math.min(memSize, Integer.MAX_VALUE);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public Disk getDisk() {
+        return disk;
+    }
+
+    public SegDescriptor getSegDescriptor(int segNO) {
+        return segTbl.get(segNO);
+    }
+
+    /**
+     * 分段开启的情况下，read方法不允许一次性读取两个段的内容，但是可以一次性读取单个段内多页的内容
+     * 注意， read方法应该在load方法被调用之后调用，即read方法的目标页(如果开启分页)都是合法的
+     *
+     * @param eip 32位物理地址
+     * @param len 读取数据的长度
+     * @return 内存中的数据
+     */
+    public char[] read(String eip, int len) {
+        return read(Long.parseLong(eip, 2), len);
+    }
+
+    /**
+     * 按long物理地址读取，主存可以超过32位地址能表示的范围
+     *
+     * @param baseAddr 物理地址
+     * @param len      读取数据的长度
+     * @return 内存中的数据
+     */
+    public char[] read(long baseAddr, int len) {
+        // TODO 读取数据
+        char[] data = new char[len];
+
+        // 实模式下
+        if (!isPage() && !isSegment()) {
+            if (baseAddr + len > memSize) {
+                disk.read(baseAddr, len, data, 0);
+                return data;
+            }
+            synchronized (this) {
+                loadRealChunks(baseAddr, len);
+                memory.read(baseAddr, data, 0, len);
+            }
+            return data;
+        }
+
+        // 分段模式下
+        else if (!isPage()) {
+            memory.read(baseAddr, data, 0, len);
+            return data;
+        }
+
+        // 段页式下
+        else {
+            memory.read(baseAddr, data, 0, len);
+            return data;
+        }
+    }
+
+    public void write(String eip, int len, char[] data) {
+        // 通知Cache缓存失效
+        // 本作业只要求读数据，不要求写数据，因此不存在程序修改数据导致Cache修改 -> Mem修改 -> Disk修改等一系列write back/write through操作，
+        //     write方法只用于测试用例中的下层存储修改数据导致上层存储数据失效，Disk.write同理
+//        Cache.getCache().invalid(eip, len);
+        // 更新数据
+        write(Long.parseLong(eip, 2), len, data);
+    }
+
+    public void write(long start, int len, char[] data) {
+        synchronized (this) {
+            if (!isPage() && !isSegment()) {
+                // 先加载写入范围所在的块，避免之后加载时覆盖写入的数据
+                loadRealChunks(start, len);
+            }
+            memory.write(start, data, 0, len);
+        }
+    }
+
+    /**
+     * @return 实模式下从磁盘加载块的次数
+     */
+    public synchronized long getRealChunkLoads() {
+        return realChunkLoads;
+    }
+
+    /**
+     * 实模式下加载[addr, addr + len)中尚未加载的块，连续的无效块合并成一次磁盘读取
+     */
+    private void loadRealChunks(long addr, int len) {
+        if (len <= 0) {
+            return;
+        }
+        int lastChunk = (int) ((addr + len - 1) / realChunkSize);
+        int chunk = realChunks.nextClearBit((int) (addr / realChunkSize));
+        while (chunk <= lastChunk) {
+            int next = realChunks.nextSetBit(chunk);
+            int end = next < 0 || next > lastChunk ? lastChunk + 1 : next;
+            long start = (long) chunk * realChunkSize;
+            long n = Math.min((long) end * realChunkSize, memSize) - start;
+            readDisk(start, start, n);
+            realChunks.set(chunk, end);
+            realChunkLoads += end - chunk;
+            chunk = realChunks.nextClearBit(end);
+        }
+    }
+
+    /**
+     * 磁盘被写入时，实模式下对应的块失效
+     */
+    private synchronized void invalidRealChunks(long start, int len) {
+        if (len <= 0 || start >= memSize) {
+            return;
+        }
+        int lastChunk = (int) ((Math.min(start + len, memSize) - 1) / realChunkSize);
+        realChunks.clear((int) (start / realChunkSize), lastChunk + 1);
+    }
+
+    /**
+     * 从磁盘地址diskAddr读取len字节到主存地址memAddr，按主存的块拆分，每块直接读入块数组
+     */
+    private void readDisk(long diskAddr, long memAddr, long len) {
+        for (long done = 0; done < len; ) {
+            int n = memory.span(memAddr + done, len - done);
+            disk.read(diskAddr + done, n, memory.chunk(memAddr + done), memory.offset(memAddr + done));
+            done += n;
+        }
+    }
+
+
+    /**
+     * 磁盘被写入后，范围内映射到零页框的虚页不再全为0，解除映射，下次访问重新读盘
+     */
+    private synchronized void invalidZeroPages(long start, int len) {
+        if (zeroFrame < 0 || len <= 0) {
+            return;
+        }
+        int last = (int) ((start + len - 1) / pageSize);
+        for (int vPageNO = (int) (start / pageSize); vPageNO <= last; vPageNO++) {
+            PageItem pItem = pageItem(vPageNO);
+            if (pItem != null && pItem.isZero()) {
+                pItem.setInMem(false);
+            }
+        }
+    }
+
+    /**
+     * 磁盘被写入后，压缩交换层中范围内的内容过期
+     */
+    private synchronized void invalidSwap(long start, int len) {
+        if (swap != null && len > 0) {
+            swap.invalidate(start, len);
+        }
+    }
+
+    /**
+     * 开启压缩交换层：之后换出的干净页框(段页式)或段的块(分段)压缩后保留在内存中，缺页(缺段)时先查交换层再读磁盘
+     *
+     * @param budget 压缩后数据的字节预算
+     * @return 交换层，用于查询压缩比、命中率和解压时间
+     */
+    public synchronized CompressedSwap enableSwap(int budget) {
+        swap = new CompressedSwap(budget);
+        return swap;
+    }
+
+    public synchronized void disableSwap() {
+        swap = null;
+    }
+
+    public synchronized CompressedSwap getSwap() {
+        return swap;
+    }
+
+    /**
+     * 分段模式下确保段内[offset, offset + len)的数据已经加载到内存
+     * 段不在内存时按 最先适应 -> 碎片整理 -> LRU 的顺序为整段分配内存区间(段基址可能因此改变)，
+     * 再从磁盘基址读入整段；开启LAZY_SEGMENT_LOAD时只读入访问范围所在的块
+     *
+     * @param segNO  段号
+     * @param offset 段内偏移
+     * @param len    读取数据的长度
+     */
+    public synchronized void load(int segNO, int offset, int len) {
+        SegDescriptor sd = segTbl.get(segNO);
+        if (!sd.validBit) {
+            totalSegmentFaults++;
+            long begin = EventTrace.begin();
+            int limit = sd.limitValue();
+            allocSegment(sd, limit);
+            wakeReclaimer();
+            if (LAZY_SEGMENT_LOAD || sd.warmQueued) {
+                // 已排入预热队列的段同样只读入访问到的块，其余的块由预热补齐
+                sd.residentChunks = new BitSet((limit + SEG_CHUNK_SIZE_B - 1) / SEG_CHUNK_SIZE_B);
+                if (BACKGROUND_SEGMENT_FILL && !sd.warmQueued) {
+                    final int generation = sd.generation;
+                    segmentFiller.execute(() -> fillSegment(sd, generation));
+                }
+            } else {
+                swapInSegmentRange(sd, 0, limit);
+            }
+            sd.validBit = true;
+            if (EventTrace.isEnabled()) {
+                EventTrace.emit(EventTrace.Type.SEGMENT_FAULT, segNO, sd.baseValue(), limit, begin);
+            }
+        }
+        sd.updateTimeStamp();
+        loadChunks(sd, offset, len);
+    }
+
+    /**
+     * 分段模式下按段寄存器的描述符缓存读取段内[offset, offset + len)
+     * 段在内存中且描述符自解码以来没有改变(版本号相同)时缓存的数值基址仍然有效，不查段表也不解析描述符，
+     * 只有段不在内存(走load)或访问到的块尚未加载(分块加载)时才走慢路径
+     *
+     * @param segNO   段号
+     * @param sd      解码时的段描述符
+     * @param version 解码时的描述符版本号
+     * @param base    解码时的段基址
+     * @param offset  段内偏移
+     * @param len     读取数据的长度
+     * @return 内存中的数据
+     */
+    public synchronized char[] readSegment(int segNO, SegDescriptor sd, int version, int base, int offset, int len) {
+        if (sd.version != version || !sd.validBit) {
+            // 段不在内存、被换出后重新加载或在内存中移动过，基址以段表中的当前描述符为准
+            load(segNO, offset, len);
+            base = segTbl.get(segNO).baseValue();
+        } else {
+            sd.updateTimeStamp();
+            loadChunks(sd, offset, len);
+        }
+        char[] data = new char[len];
+        memory.read((long) base + offset, data, 0, len);
+        return data;
+    }
+
+    /**
+     * 分块加载的段读入[offset, offset + len)所在的块，段已全部加载时什么也不做
+     */
+    private void loadChunks(SegDescriptor sd, int offset, int len) {
+        if (sd.residentChunks == null || len <= 0) {
+            return;
+        }
+        int limit = sd.limitValue();
+        int lastChunk = (Math.min(offset + len, limit) - 1) / SEG_CHUNK_SIZE_B;
+        for (int chunk = offset / SEG_CHUNK_SIZE_B; chunk <= lastChunk; chunk++) {
+            loadChunk(sd, chunk, limit);
+        }
+    }
+
+    /**
+     * @return 段已经加载到内存中的字节数，段不在内存时为0
+     */
+    public synchronized int getResidentBytes(int segNO) {
+        SegDescriptor sd = segTbl.get(segNO);
+        if (!sd.validBit) {
+            return 0;
+        }
+        int limit = sd.limitValue();
+        if (sd.residentChunks == null) {
+            return limit;
+        }
+        int bytes = 0;
+        for (int chunk = sd.residentChunks.nextSetBit(0); chunk >= 0; chunk = sd.residentChunks.nextSetBit(chunk + 1)) {
+            bytes += Math.min(SEG_CHUNK_SIZE_B, limit - chunk * SEG_CHUNK_SIZE_B);
+        }
+        return bytes;
+    }
+
+    /**
+     * 后台补齐段的剩余块，每次只持有锁加载一个块，前台读取最多等待一个块的加载时间
+     * 段在补齐过程中被清除、失效或换出(generation改变)时停止
+     */
+    private void fillSegment(SegDescriptor sd, int generation) {
+        while (true) {
+            synchronized (this) {
+                if (sd.generation != generation || !sd.validBit || sd.residentChunks == null) {
+                    return;
+                }
+                loadChunk(sd, sd.residentChunks.nextClearBit(0), sd.limitValue());
+            }
+        }
+    }
+
+    /**
+     * 开启PROACTIVE_SEGMENT_LOAD时把不在内存的段排入预热队列，段页式下缺页本来就只读入访问到的页，不预热
+     */
+    private void queueWarm(SegDescriptor sd) {
+        if (!PROACTIVE_SEGMENT_LOAD || !isSegment() || isPage() || sd.validBit) {
+            return;
+        }
+        final int generation = sd.generation;
+        sd.warmQueued = true;
+        segmentFiller.execute(() -> warmSegment(sd, generation));
+    }
+
+    /**
+     * 为排队的段分配内存区间，之后和分块加载一样逐块补齐
+     * 预热开始前前台读取已经为段分配了内存区间(只读入了访问到的块)时直接补齐其余的块
+     * 段已被清除(不在段表中)、已全部加载或在排队期间失效(generation改变)时不再预热
+     */
+    private void warmSegment(SegDescriptor sd, int generation) {
+        synchronized (this) {
+            if (sd.generation != generation || !segTbl.contains(sd)) {
+                return;
+            }
+            sd.warmQueued = false;
+            if (sd.validBit) {
+                if (sd.residentChunks == null) {
+                    return;
+                }
+            } else {
+                int limit = sd.limitValue();
+                int addr = firstFit(limit);
+                if (addr < 0) {
+                    return;
+                }
+                sd.setBase(t.intToBinary(String.valueOf(addr)).toCharArray());
+                sd.residentChunks = new BitSet((limit + SEG_CHUNK_SIZE_B - 1) / SEG_CHUNK_SIZE_B);
+                sd.validBit = true;
+                warmedSegments++;
+                wakeReclaimer();
+            }
+        }
+        fillSegment(sd, generation);
+    }
+
+    public synchronized long getWarmedSegments() {
+        return warmedSegments;
+    }
+
+    private void loadChunk(SegDescriptor sd, int chunk, int limit) {
+        if (sd.residentChunks == null || sd.residentChunks.get(chunk)) {
+            return;
+        }
+        int start = chunk * SEG_CHUNK_SIZE_B;
+        swapInSegmentRange(sd, start, Math.min(SEG_CHUNK_SIZE_B, limit - start));
+        sd.residentChunks.set(chunk);
+        if (sd.residentChunks.nextClearBit(0) * SEG_CHUNK_SIZE_B >= limit) {
+            sd.residentChunks = null;   // 已全部加载
+        }
+    }
+
+    /**
+     * 分段模式下为写入准备段内[offset, offset + len)，段被标记为已修改，换出时不进入压缩交换层
+     */
+    public synchronized void loadForWrite(int segNO, int offset, int len) {
+        load(segNO, offset, len);
+        segTbl.get(segNO).dirty = true;
+    }
+
+    /**
+     * 将段内[offset, offset + len)读入内存，offset按块对齐：压缩交换层中有的块直接解压，其余连续的块合并成一次磁盘读
+     */
+    private void swapInSegmentRange(SegDescriptor sd, int offset, int len) {
+        if (swap == null) {
+            loadSegmentRange(sd, offset, len);
+            return;
+        }
+        int diskBase = Integer.parseInt(t.binaryToInt(String.valueOf(sd.disk_base)));
+        int memBase = sd.baseValue();
+        int missFrom = -1;
+        char[] chunk = new char[Math.min(SEG_CHUNK_SIZE_B, len)];
+        for (int from = offset; from < offset + len; from += SEG_CHUNK_SIZE_B) {
+            int n = Math.min(SEG_CHUNK_SIZE_B, offset + len - from);
+            if (swap.get(diskBase + from, n, chunk, 0)) {
+                memory.write(memBase + from, chunk, 0, n);
+                if (missFrom >= 0) {
+                    loadSegmentRange(sd, missFrom, from - missFrom);
+                    missFrom = -1;
+                }
+            } else if (missFrom < 0) {
+                missFrom = from;
+            }
+        }
+        if (missFrom >= 0) {
+            loadSegmentRange(sd, missFrom, offset + len - missFrom);
+        }
+    }
+
+    /**
+     * 分段模式下换出段
+     */
+    private void evictSegment(SegDescriptor sd) {
+        if (sd.validBit && EventTrace.isEnabled()) {
+            EventTrace.emit(EventTrace.Type.EVICT_SEGMENT, segTbl.indexOf(sd), sd.baseValue(), sd.limitValue(), 0L);
+        }
+        swapOutSegment(sd);
+        sd.evict();
+    }
+
+    /**
+     * 分段模式下段被换出前，未修改的段把已加载的块放入压缩交换层
+     */
+    private void swapOutSegment(SegDescriptor sd) {
+        if (swap == null || sd.dirty || !sd.validBit) {
+            return;
+        }
+        int diskBase = Integer.parseInt(t.binaryToInt(String.valueOf(sd.disk_base)));
+        int memBase = sd.baseValue();
+        int limit = sd.limitValue();
+        char[] chunk = new char[Math.min(SEG_CHUNK_SIZE_B, limit)];
+        for (int from = 0; from < limit; from += SEG_CHUNK_SIZE_B) {
+            if (sd.residentChunks == null || sd.residentChunks.get(from / SEG_CHUNK_SIZE_B)) {
+                int n = Math.min(SEG_CHUNK_SIZE_B, limit - from);
+                memory.read(memBase + from, chunk, 0, n);
+                swap.put(diskBase + from, chunk, 0, n);
+            }
+        }
+    }
+
+    /**
+     * 将段内[offset, offset + len)从磁盘读入段在内存中的对应位置
+     *
+     * @throws IllegalStateException 并行加载的区间失败或调用线程被中断(中断状态被保留)
+     */
+    private void loadSegmentRange(SegDescriptor sd, int offset, int len) {
+        int diskBase = Integer.parseInt(t.binaryToInt(String.valueOf(sd.disk_base)));
+        int memBase = sd.baseValue();
+        if (len < PARALLEL_LOAD_THRESHOLD_B || SEGMENT_LOAD_THREADS <= 1) {
+            readDisk(diskBase + offset, memBase + offset, len);
+            return;
+        }
+        // 区间长度按磁盘块大小取整，减少相邻区间重复读同一个块
+        int rangeLen = (len + SEGMENT_LOAD_THREADS - 1) / SEGMENT_LOAD_THREADS;
+        rangeLen = (rangeLen + Disk.CACHE_BLOCK_SIZE_B - 1) / Disk.CACHE_BLOCK_SIZE_B * Disk.CACHE_BLOCK_SIZE_B;
+        ExecutorService pool = segmentLoaders();
+        List<Future<?>> ranges = new ArrayList<>();
+        for (int from = 0; from < len; from += rangeLen) {
+            final long diskAddr = diskBase + offset + from;
+            final int n = Math.min(rangeLen, len - from);
+            final long memAddr = memBase + offset + from;
+            ranges.add(pool.submit(() -> readDisk(diskAddr, memAddr, n)));
+        }
+        // 任一区间失败或等待时被中断：取消尚未开始的区间，等正在读的区间结束后再抛出，调用者不会置段(块)的有效位
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (Future<?> range : ranges) {
+            while (true) {
+                try {
+                    range.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    failure = e;
+                    ranges.forEach(r -> r.cancel(false));
+                    continue;
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                    ranges.forEach(r -> r.cancel(false));
+                } catch (CancellationException e) {
+                    // 已被取消的区间
+                }
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new IllegalStateException("段加载失败: " + segTbl.indexOf(sd), failure);
+        }
+    }
+
+    private static synchronized ExecutorService segmentLoaders() {
+        if (segmentLoaders == null || segmentLoaderThreads != SEGMENT_LOAD_THREADS) {
+            if (segmentLoaders != null) {
+                segmentLoaders.shutdown();
+            }
+            segmentLoaderThreads = SEGMENT_LOAD_THREADS;
+            segmentLoaders = Executors.newFixedThreadPool(segmentLoaderThreads, r -> {
+                Thread thread = new Thread(r, "segment-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return segmentLoaders;
+    }
+
+    /**
+     * 最先适应 -> 空间不足则判断总剩余空间是否足够 -> 足够则进行碎片整理
+     * -> 不足则按LRU换出段直到总剩余空间足够 -> 碎片整理
+     */
+    private void allocSegment(SegDescriptor sd, int limit) {
+        int addr = firstFit(limit);
+        if (addr < 0) {
+            while (freeSpace() < limit) {
+                SegDescriptor victim = null;
+                for (SegDescriptor other : segTbl) {
+                    if (other.validBit && (victim == null || other.timeStamp < victim.timeStamp)) {
+                        victim = other;
+                    }
+                }
+                if (victim == null) {
+                    throw new IllegalStateException("段长度超过内存大小: " + limit);
+                }
+                evictSegment(victim);
+                directReclaims++;
+            }
+            addr = compact();
+        }
+        sd.setBase(t.intToBinary(String.valueOf(addr)).toCharArray());
+    }
+
+    /**
+     * @return 第一个能容纳len字节的空闲区间起始地址，没有返回-1
+     */
+    private int firstFit(int len) {
+        int addr = 0;
+        for (SegDescriptor sd : residentSegments()) {
+            if (sd.baseValue() - addr >= len) {
+                return addr;
+            }
+            addr = Math.max(addr, sd.baseValue() + sd.limitValue());
+        }
+        return segmentArea() - addr >= len ? addr : -1;
+    }
+
+    private int freeSpace() {
+        int used = 0;
+        for (SegDescriptor sd : segTbl) {
+            if (sd.validBit) {
+                used += sd.limitValue();
+            }
+        }
+        return segmentArea() - used;
+    }
+
+    /**
+     * 碎片整理：按基址顺序将内存中的段依次紧凑到低地址，并更新段基址
+     *
+     * @return 整理后空闲区间的起始地址
+     */
+    private int compact() {
+        long begin = EventTrace.begin();
+        int addr = 0;
+        long moved = 0L;
+        int movedSegments = 0;
+        for (SegDescriptor sd : residentSegments()) {
+            int base = sd.baseValue();
+            int limit = sd.limitValue();
+            if (base != addr) {
+                memory.copy(base, addr, limit);
+                sd.setBase(t.intToBinary(String.valueOf(addr)).toCharArray());
+                moved += limit;
+                movedSegments++;
+            }
+            addr += limit;
+        }
+        EventTrace.emit(EventTrace.Type.COMPACT, -1, moved, movedSegments, begin);
+        return addr;
+    }
+
+    /**
+     * @return 按基址排序的、在内存中的段
+     */
+    private ArrayList<SegDescriptor> residentSegments() {
+        ArrayList<SegDescriptor> resident = new ArrayList<>();
+        for (SegDescriptor sd : segTbl) {
+            if (sd.validBit) {
+                resident.add(sd);
+            }
+        }
+        resident.sort((a, b) -> Integer.compare(a.baseValue(), b.baseValue()));
+        return resident;
+    }
+
+
+    /*************************************************以下为数据结构和测试用例使用的接口*************************************************/
+
+    /**
+     * 强制创建一个段描述符，指向指定的物理地址，以便测试用例可以直接修改Disk，
+     * 而不用创建一个模拟进程，自上而下进行修改，也不用实现内存分配策略
+     * 此方法仅被测试用例使用，而且使用时需小心，此方法不会判断多个段描述符对应的物理存储区间是否重叠
+     *
+     * @param segSelector 新添加到段表项的索引，int类型
+     * @param eip         32-bits,对应段表项中的base
+     * @param len         32-bits,其后31位对应段的长度（那第一位是用来干嘛的？
+     * @param isValid     标识段是否在内存中
+     * @param disk_base   32-bits，对应段表项中段disk_base,即段在磁盘中存储段物理位置
+     */
+    // 这个方法就是向段表项中增加一项
+    public synchronized void alloc_seg_force(int segSelector, String eip, int len, boolean isValid, String disk_base) {
+        SegDescriptor sd = new SegDescriptor(); // 新的段表项
+        Transformer t = new Transformer();
+        sd.setDisk(disk_base.toCharArray());
+        sd.setBase(eip.toCharArray());
+        sd.setLimit(t.intToBinary(String.valueOf(len)).substring(1, 32).toCharArray());
+        sd.setValidBit(isValid);
+        for (int i = segSelector; i < segTbl.size(); i++) {
+            segTbl.get(i).version++;    // 之后的段表项后移，原选择符不再指向它们
+        }
+        segTbl.add(segSelector, sd); // 将新的段表项添加到段表中，segSelector是索引
+        queueWarm(sd);
+    }
+
+    /**
+     * 清空段表页表，用于测试用例
+     */
+    public synchronized void clear() {
+        for (SegDescriptor sd : segTbl) {
+            sd.evict();
+        }
+        segTbl = new ArrayList<>();
+        for (PageItem[] dir : pageTbl) {
+            for (int i = 0; dir != null && i < dir.length; i++) {
+                if (dir[i] != null) {
+                    dir[i].setInMem(false);
+                }
+            }
+        }
+        reversedPageTbl = new ReversedPageItem[reversedPageTbl.length][];
+        frameAllocator.clear();
+        zeroFrame = -1;
+        framesSaved = 0L;
+        realChunks.clear();
+        if (swap != null) {
+            swap.clear();
+        }
+    }
+
+    /**
+     * 强制使段/页失效，仅用于测试用例
+     *
+     * @param segNO
+     * @param pageNO
+     */
+    public synchronized void invalid(int segNO, int pageNO) {
+        if (segNO >= 0) {
+            if (!isPage()) {
+                evictSegment(segTbl.get(segNO));
+                queueWarm(segTbl.get(segNO));
+            } else {
+                segTbl.get(segNO).evict();
+            }
+            if (isPage()) {
+                // 段被移出内存，其占用的页框全部释放，配额在下次访问时重新分配
+                releaseFrames(segNO, 0);
+                segTbl.get(segNO).frameQuota = 0;
+            }
+        }
+        if (isPage()) {
+            if (pageNO >= 0) {
+                unmapPage(pageNO, true);
+            }
+        }
+    }
+
+    /**
+     * 段页式下确保虚页已经加载到内存，返回虚页所在的页框号
+     * 虚页不在内存时发生缺页：先按PFF调整段的页框配额，再分配页框并从磁盘(虚页号 * 页大小)读入整页
+     *
+     * @param segNO   访问该页的段
+     * @param vPageNO 虚页号
+     * @return 页框号
+     */
+    public synchronized int loadPage(int segNO, int vPageNO) {
+        int[] frames = new int[1];
+        loadPages(segNO, vPageNO, 1, frames);
+        return frames[0];
+    }
+
+    /**
+     * 段页式下确保连续的虚页[firstVPageNO, firstVPageNO + count)已经加载到内存，一次读取跨越多页时使用
+     * 先逐页确定页框(命中的页更新时间戳，缺页的页按PFF调整配额并分配页框)，
+     * 再把连续缺失的虚页(磁盘地址也连续)合并成一次磁盘读，读入为它们分配的页框
+     * 本次已确定的页框在返回前不会被替换；全部页框都被本次占用时提前结束，调用者对剩余的页再次调用
+     *
+     * @param frames 输出，frames[i]为第firstVPageNO + i页所在的页框号
+     * @return 已加载的页数，至少为1
+     * @throws IllegalStateException 第一页就没有可用的页框
+     */
+    public synchronized int loadPages(int segNO, int firstVPageNO, int count, int[] frames) {
+        long begin = EventTrace.begin();
+        SegDescriptor sd = segTbl.get(segNO);
+        boolean[] missed = new boolean[count];
+        int n = 0;
+        try {
+            for (; n < count; n++) {
+                int frameNO = mapPage(segNO, sd, firstVPageNO + n, missed, n);
+                if (frameNO < 0) {
+                    break;
+                }
+                frames[n] = frameNO;
+                pinned.set(frameNO);
+            }
+            if (n == 0) {
+                // 第一页就没有可用页框(主存只有零页框)，调用者无法继续
+                throw new IllegalStateException("没有可以分配的页框: " + firstVPageNO);
+            }
+            boolean[] faulted = EventTrace.isEnabled() ? missed.clone() : null;
+            for (int i = 0; i < n && swap != null; i++) {
+                // 压缩交换层中有的页直接解压到页框，不参与合并读盘
+                if (missed[i] && swap.get((long) (firstVPageNO + i) * pageSize, pageSize, memory.chunk(physAddr(frames[i])), memory.offset(physAddr(frames[i])))) {
+                    missed[i] = false;
+                }
+            }
+            for (int i = 0; i < n; ) {
+                if (!missed[i]) {
+                    i++;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < n && missed[j]) {
+                    j++;
+                }
+                readRun(firstVPageNO + i, frames, i, j - i);
+                i = j;
+            }
+            // 缺页事件的耗时从本次加载开始算起，包括从交换层解压或读盘
+            for (int i = 0; faulted != null && i < n; i++) {
+                if (faulted[i]) {
+                    EventTrace.emit(EventTrace.Type.PAGE_FAULT, segNO, firstVPageNO + i, frames[i], begin);
+                }
+            }
+        } finally {
+            pinned.clear();
+            // 预留的页框没有用完(如其中的虚页映射到零页框)，归还分配位图
+            while (runNext < runEnd) {
+                frameAllocator.free(runNext++);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 从vPageNO开始连续缺失的虚页(至少2页)在段的配额以内一次分配连续的页框，之后的缺页由allocFrame按顺序取用，
+     * 这些虚页的页框与磁盘地址都连续，readRun直接读入主存；没有足够长的连续空闲页框时仍逐页分配
+     *
+     * @param max 本次loadPages剩余的页数
+     */
+    private void reserveRun(SegDescriptor sd, int vPageNO, int max) {
+        int room = sd.frameQuota - sd.residentFrames;
+        int run = 0;
+        while (run < max && run < room) {
+            PageItem pItem = pageItem(vPageNO + run);
+            if (pItem != null && pItem.isInMem()) {
+                break;
+            }
+            run++;
+        }
+        if (run < 2) {
+            return;
+        }
+        int first = frameAllocator.allocRun(run);
+        if (first >= 0) {
+            runNext = first;
+            runEnd = first + run;
+        }
+    }
+
+    /**
+     * 确定虚页所在的页框，缺页时只分配页框并建立映射，数据由loadPages按段读入
+     *
+     * @return 页框号，没有可用页框(全部被本次加载占用)时返回-1
+     */
+    private int mapPage(int segNO, SegDescriptor sd, int vPageNO, boolean[] missed, int index) {
+        PageItem pItem = pageTbl(vPageNO);
+        if (!pItem.isInMem() && frameAllocator.freeFrames() == 0 && runNext == runEnd && pinnedFrames() >= replaceableFrames()) {
+            // 没有空闲页框，可替换的页框又都属于本次加载
+            return -1;
+        }
+        long now = ++refClock;
+        sd.refCount++;
+        sd.lastRef = now;
+        if (!sd.validBit || sd.frameQuota == 0) {
+            // 段不在内存：先按分段模式管理，配额为段包含的总页数/2
+            int segPages = (sd.limitValue() + pageSize - 1) / pageSize;
+            sd.frameQuota = Math.max(1, Math.min(segPages / 2, frameCount));
+            sd.lastFaultRef = sd.refCount;
+            sd.validBit = true;
+        }
+        if (pItem.isInMem()) {
+            reversedPageTbl(pItem.frameNO).timeStamp = now;
+            return pItem.frameNO;
+        }
+
+        // 缺页
+        long begin = EventTrace.begin();
+        totalPageFaults++;
+        sd.pageFaults++;
+        if (disk.isZero((long) vPageNO * pageSize, pageSize) && zeroFrame() >= 0) {
+            // 全0的虚页映射到共享的零页框，不读磁盘也不占用段的页框配额
+            zeroPageFaults++;
+            pItem.frameNO = zeroFrame;
+            pItem.setFrameAddr(frameAddr(zeroFrame));
+            pItem.setInMem(true);
+            pItem.zero = true;
+            EventTrace.emit(EventTrace.Type.PAGE_FAULT, segNO, vPageNO, zeroFrame, begin);
+            return zeroFrame;
+        }
+        long interval = sd.refCount - sd.lastFaultRef;
+        sd.lastFaultRef = sd.refCount;
+        if (interval <= PFF_LOWER_INTERVAL && sd.residentFrames >= sd.frameQuota) {
+            sd.frameQuota = Math.min(frameCount, sd.frameQuota + PFF_GROW_STEP);
+        } else if (interval > PFF_UPPER_INTERVAL) {
+            sd.frameQuota = Math.max(1, sd.frameQuota / 2);
+            releaseFrames(segNO, sd.frameQuota - 1);
+        }
+
+        if (runNext == runEnd) {
+            reserveRun(sd, vPageNO, missed.length - index);
+        }
+        int frameNO = allocFrame(segNO, sd);
+        if (frameNO < 0) {
+            return -1;
+        }
+        mapFrame(segNO, sd, vPageNO, frameNO, now);
+        missed[index] = true;
+        wakeReclaimer();
+        return frameNO;
+    }
+
+    private void mapFrame(int segNO, SegDescriptor sd, int vPageNO, int frameNO, long now) {
+        PageItem pItem = pageTbl(vPageNO);
+        ReversedPageItem rItem = reversedPageTbl(frameNO);
+        rItem.isValid = true;
+        rItem.vPageNO = vPageNO;
+        rItem.segNO = segNO;
+        rItem.timeStamp = now;
+        rItem.sharers = null;
+        sd.residentFrames++;
+        pItem.setFrameAddr(frameAddr(frameNO));
+        pItem.frameNO = frameNO;
+        pItem.setInMem(true);
+        pItem.zero = false;
+    }
+
+    /**
+     * 段页式下为写入准备虚页：确保虚页在内存中，映射到零页框时先分配私有页框并清零(写时复制)
+     *
+     * @return 可以写入的页框号
+     */
+    public synchronized int loadPageForWrite(int segNO, int vPageNO) {
+        int frameNO = loadPage(segNO, vPageNO);
+        PageItem pItem = pageTbl(vPageNO);
+        SegDescriptor sd = segTbl.get(segNO);
+        if (!pItem.isZero()) {
+            ReversedPageItem rItem = reversedPageTbl(frameNO);
+            if (rItem.sharers == null) {
+                pItem.dirty = true;
+                return frameNO;
+            }
+            // 去重后共享的页框：复制出私有页框，本页退出共享
+            int shared = frameNO;
+            pinned.set(shared);
+            try {
+                frameNO = allocFrame(segNO, sd);
+            } finally {
+                pinned.clear();
+            }
+            System.arraycopy(memory.chunk(physAddr(shared)), memory.offset(physAddr(shared)), memory.chunk(physAddr(frameNO)), memory.offset(physAddr(frameNO)), pageSize);
+            detach(shared, vPageNO);
+            mapFrame(segNO, sd, vPageNO, frameNO, refClock);
+            pItem.dirty = true;
+            sharedCopies++;
+            return frameNO;
+        }
+        pinned.set(zeroFrame);
+        try {
+            frameNO = allocFrame(segNO, sd);
+        } finally {
+            pinned.clear();
+        }
+        memory.fill(physAddr(frameNO), pageSize, (char) 0);
+        mapFrame(segNO, sd, vPageNO, frameNO, refClock);
+        pItem.dirty = true;
+        zeroPageCopies++;
+        return frameNO;
+    }
+
+    /**
+     * 虚页退出共享页框，页框的属主退出时由第一个共享者接替，页框改为计入新属主所在的段
+     */
+    private void detach(int frameNO, int vPageNO) {
+        ReversedPageItem rItem = reversedPageTbl(frameNO);
+        if (rItem.vPageNO == vPageNO) {
+            int[] next = rItem.sharers.remove(0);
+            if (rItem.segNO < segTbl.size()) {
+                segTbl.get(rItem.segNO).residentFrames--;
+            }
+            rItem.segNO = next[0];
+            rItem.vPageNO = next[1];
+            if (rItem.segNO < segTbl.size()) {
+                segTbl.get(rItem.segNO).residentFrames++;
+            }
+        } else {
+            rItem.sharers.removeIf(sharer -> sharer[1] == vPageNO);
+        }
+        framesSaved--;
+        if (rItem.sharers.isEmpty()) {
+            rItem.sharers = null;
+        }
+    }
+
+    /**
+     * 按内容合并相同的页框(类似KSM)：对每个在使用的页框计算内容哈希，哈希相同时逐字节比较确认，
+     * 内容相同的页框合并成一个只读共享页框，被合并页框上的虚页全部指向保留的页框，释放的页框归还分配位图
+     * 共享页框被写入时(MMU#write)复制出私有页框；被替换时映射到它的虚页全部失效
+     * 被写入过的页不参与合并：它的内容与磁盘不同，换出时不能和未修改的页一起进入压缩交换层
+     *
+     * @return 本次合并释放的页框数
+     */
+    public synchronized int dedupFrames() {
+        HashMap<Long, List<Integer>> candidates = new HashMap<>();
+        int merged = 0;
+        for (int frameNO = nextFrame(0); frameNO >= 0; frameNO = nextFrame(frameNO + 1)) {
+            ReversedPageItem rItem = rItem(frameNO);
+            if (rItem == null || !rItem.isValid || pinned.get(frameNO) || pageTbl(rItem.vPageNO).dirty) {
+                continue;
+            }
+            List<Integer> same = candidates.computeIfAbsent(contentHash(frameNO), k -> new ArrayList<>());
+            boolean done = false;
+            for (int target : same) {
+                char[] a = memory.chunk(physAddr(target));
+                char[] b = memory.chunk(physAddr(frameNO));
+                int aFrom = memory.offset(physAddr(target));
+                int bFrom = memory.offset(physAddr(frameNO));
+                if (Arrays.equals(a, aFrom, aFrom + pageSize, b, bFrom, bFrom + pageSize)) {
+                    mergeFrame(frameNO, target);
+                    merged++;
+                    done = true;
+                    break;
+                }
+            }
+            if (!done) {
+                // 哈希冲突但内容不同的页框各自作为候选
+                same.add(frameNO);
+            }
+        }
+        dedupMerges += merged;
+        return merged;
+    }
+
+    /**
+     * 在后台定期执行dedupFrames
+     *
+     * @param intervalMillis 两次扫描的间隔(毫秒)
+     */
+    public synchronized void startDedup(long intervalMillis) {
+        stopDedup();
+        dedupTask = deduper.scheduleWithFixedDelay(this::dedupFrames, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopDedup() {
+        if (dedupTask != null) {
+            dedupTask.cancel(false);
+            dedupTask = null;
+        }
+    }
+
+    /**
+     * @return 当前因去重而节省的页框数
+     */
+    public synchronized long getFramesSaved() {
+        return framesSaved;
+    }
+
+    public synchronized long getDedupMerges() {
+        return dedupMerges;
+    }
+
+    public synchronized long getSharedCopies() {
+        return sharedCopies;
+    }
+
+    /**
+     * @return 页框上的虚页数，不在使用的页框为0
+     */
+    public synchronized int getFrameMappings(int frameNO) {
+        ReversedPageItem rItem = rItem(frameNO);
+        if (rItem == null || !rItem.isValid) {
+            return 0;
+        }
+        return 1 + (rItem.sharers == null ? 0 : rItem.sharers.size());
+    }
+
+    private long contentHash(int frameNO) {
+        long hash = 1125899906842597L;
+        char[] chunk = memory.chunk(physAddr(frameNO));
+        int from = memory.offset(physAddr(frameNO));
+        for (int i = from; i < from + pageSize; i++) {
+            hash = 31 * hash + chunk[i];
+        }
+        return hash;
+    }
+
+    /**
+     * 把source上的全部虚页改为指向target，释放source
+     */
+    private void mergeFrame(int source, int target) {
+        ReversedPageItem from = rItem(source);
+        ReversedPageItem to = rItem(target);
+        if (to.sharers == null) {
+            to.sharers = new ArrayList<>();
+        }
+        List<int[]> pages = new ArrayList<>();
+        pages.add(new int[]{from.segNO, from.vPageNO});
+        if (from.sharers != null) {
+            pages.addAll(from.sharers);
+        }
+        for (int[] page : pages) {
+            PageItem pItem = pageTbl(page[1]);
+            pItem.frameNO = target;
+            pItem.setFrameAddr(frameAddr(target));
+            to.sharers.add(page);
+        }
+        framesSaved += pages.size() - (from.sharers == null ? 0 : from.sharers.size());
+        to.timeStamp = Math.max(to.timeStamp, from.timeStamp);
+        if (from.segNO < segTbl.size()) {
+            segTbl.get(from.segNO).residentFrames--;
+        }
+        from.isValid = false;
+        from.vPageNO = -1;
+        from.segNO = -1;
+        from.sharers = null;
+        frameAllocator.free(source);
+    }
+
+    /**
+     * 启动后台回收线程，水位取RECLAIM_LOW_WATERMARK和RECLAIM_HIGH_WATERMARK
+     */
+    public synchronized void startReclaimer() {
+        if (reclaimer != null) {
+            return;
+        }
+        reclaiming = true;
+        reclaimer = new Thread(this::reclaim, "memory-reclaimer");
+        reclaimer.setDaemon(true);
+        reclaimer.start();
+        wakeReclaimer();
     }
 
-    public static Memory getMemory() {
-        return memoryInstance;
+    public void stopReclaimer() {
+        Thread thread;
+        synchronized (this) {
+            thread = reclaimer;
+            reclaimer = null;
+            reclaiming = false;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
-     * 分段开启的情况下，read方法不允许一次性读取两个段的内容，但是可以一次性读取单个段内多页的内容
-     * 注意， read方法应该在load方法被调用之后调用，即read方法的目标页(如果开启分页)都是合法的
-     *
-     * @param eip 32位物理地址
-     * @param len 读取数据的长度
-     * @return 内存中的数据
+     * 停止本实例的回收线程和定期去重；磁盘由Builder创建时一并关闭(刷出写缓冲区，释放镜像文件)
      */
-    public char[] read(String eip, int len) {
-        // TODO 读取数据
+    @Override
+    public void close() {
+        stopReclaimer();
+        stopDedup();
+        if (ownsDisk) {
+            disk.close();
+        }
+    }
 
-        // 实模式下
-        if (!PAGE && !SEGMENT) {
-            return Disk.getDisk().read(eip, len);
+    /**
+     * @return 回收线程换出的页框(段页式)或段(分段)数
+     */
+    public synchronized long getBackgroundReclaims() {
+        return backgroundReclaims;
+    }
+
+    /**
+     * @return 缺页(缺段)路径上为取得页框(段空间)而换出的页框或段数
+     */
+    public synchronized long getDirectReclaims() {
+        return directReclaims;
+    }
+
+    private void wakeReclaimer() {
+        if (reclaimer != null && belowWatermark(RECLAIM_LOW_WATERMARK)) {
+            notifyAll();
         }
+    }
 
-        // 分段模式下
-        else if (!PAGE) {
-            int baseAddr = Integer.parseInt(t.binaryToInt(eip));
-            char[] data = new char[len];
-            System.arraycopy(memory, baseAddr, data, 0, len);
-            return data;
+    /**
+     * @return 空闲页框(段页式)或空闲段空间(分段)是否低于比例ratio，实模式下不需要回收
+     */
+    private boolean belowWatermark(double ratio) {
+        if (isPage()) {
+            return frameAllocator.freeFrames() < ratio * frameCount;
         }
+        if (isSegment()) {
+            return freeSpace() < ratio * segmentArea();
+        }
+        return false;
+    }
 
-        // 段页式下
-        else {
-            int baseAddr = Integer.parseInt(t.binaryToInt(eip));
-            char[] data = new char[len];
-            System.arraycopy(memory, baseAddr, data, 0, len);
-            return data;
+    private void reclaim() {
+        while (reclaiming) {
+            synchronized (this) {
+                try {
+                    while (reclaiming && !belowWatermark(RECLAIM_LOW_WATERMARK)) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // 分批回收到高水位，每批之间让出锁，缺页不必等整轮回收结束
+            boolean progress = true;
+            while (reclaiming && progress) {
+                synchronized (this) {
+                    if (!belowWatermark(RECLAIM_HIGH_WATERMARK)) {
+                        break;
+                    }
+                    progress = reclaimBatch() > 0;
+                }
+                Thread.yield();
+            }
+            if (!progress) {
+                // 没有可以换出的页框(段)，等待之后的缺页再唤醒
+                synchronized (this) {
+                    try {
+                        wait(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
         }
     }
 
-    public void write(String eip, int len, char[] data) {
-        // 通知Cache缓存失效
-        // 本作业只要求读数据，不要求写数据，因此不存在程序修改数据导致Cache修改 -> Mem修改 -> Disk修改等一系列write back/write through操作，
-        //     write方法只用于测试用例中的下层存储修改数据导致上层存储数据失效，Disk.write同理
-//        Cache.getCache().invalid(eip, len);
-        // 更新数据
-        int start = Integer.parseInt(new Transformer().binaryToInt(eip));
-        for (int ptr = 0; ptr < len; ptr++) {
-            memory[start + ptr] = data[ptr];
+    /**
+     * 按替换策略换出一批页框(段)：段页式下先换出超出配额或空闲的段中最久未用的页框，再按全局LRU；分段模式下按LRU换出段
+     *
+     * @return 换出的页框(段)数
+     */
+    private int reclaimBatch() {
+        int reclaimed = 0;
+        if (isPage()) {
+            ArrayList<Integer> frames = new ArrayList<>();
+            for (int i = nextFrame(0); i >= 0; i = nextFrame(i + 1)) {
+                ReversedPageItem rItem = rItem(i);
+                if (rItem != null && rItem.isValid && !pinned.get(i)) {
+                    frames.add(i);
+                }
+            }
+            frames.sort((a, b) -> {
+                boolean ra = reclaimable(rItem(a).segNO);
+                boolean rb = reclaimable(rItem(b).segNO);
+                if (ra != rb) {
+                    return ra ? -1 : 1;
+                }
+                return Long.compare(rItem(a).timeStamp, rItem(b).timeStamp);
+            });
+            for (int i = 0; i < frames.size() && reclaimed < RECLAIM_BATCH && belowWatermark(RECLAIM_HIGH_WATERMARK); i++) {
+                evictFrame(frames.get(i));
+                reclaimed++;
+            }
+        } else if (isSegment()) {
+            while (reclaimed < RECLAIM_BATCH && belowWatermark(RECLAIM_HIGH_WATERMARK)) {
+                SegDescriptor victim = null;
+                for (SegDescriptor sd : segTbl) {
+                    if (sd.validBit && (victim == null || sd.timeStamp < victim.timeStamp)) {
+                        victim = sd;
+                    }
+                }
+                if (victim == null) {
+                    break;
+                }
+                evictSegment(victim);
+                reclaimed++;
+            }
+        }
+        backgroundReclaims += reclaimed;
+        return reclaimed;
+    }
+
+    /**
+     * @return 可以被替换的页框数，零页框不在反向页表中，不能被替换
+     */
+    private int replaceableFrames() {
+        return frameCount - (zeroFrame >= 0 ? 1 : 0);
+    }
+
+    /**
+     * @return 本次加载已确定的页框中可以被替换的页框数，映射到零页框的虚页也会把零页框标记为已确定
+     */
+    private int pinnedFrames() {
+        return pinned.cardinality() - (zeroFrame >= 0 && pinned.get(zeroFrame) ? 1 : 0);
+    }
+
+    private boolean reclaimable(int segNO) {
+        if (segNO < 0 || segNO >= segTbl.size()) {
+            return true;
         }
+        SegDescriptor owner = segTbl.get(segNO);
+        return owner.residentFrames > owner.frameQuota || refClock - owner.lastRef > IDLE_WINDOW;
     }
 
+    /**
+     * @return 共享零页框的页框号，第一次调用时分配并清零；没有可用页框时返回-1
+     */
+    private int zeroFrame() {
+        if (zeroFrame >= 0) {
+            return zeroFrame;
+        }
+        int frameNO = frameAllocator.alloc();
+        if (frameNO < 0) {
+            frameNO = lruFrame(-1);
+            if (frameNO < 0) {
+                return -1;
+            }
+            evictFrame(frameNO);
+            frameAllocator.take(frameNO);
+        }
+        memory.fill(physAddr(frameNO), pageSize, (char) 0);
+        zeroFrame = frameNO;
+        return zeroFrame;
+    }
 
-    /*************************************************以下为数据结构和测试用例使用的接口*************************************************/
+    public synchronized long getZeroPageFaults() {
+        return zeroPageFaults;
+    }
+
+    public synchronized long getZeroPageCopies() {
+        return zeroPageCopies;
+    }
 
     /**
-     * 强制创建一个段描述符，指向指定的物理地址，以便测试用例可以直接修改Disk，
-     * 而不用创建一个模拟进程，自上而下进行修改，也不用实现内存分配策略
-     * 此方法仅被测试用例使用，而且使用时需小心，此方法不会判断多个段描述符对应的物理存储区间是否重叠
+     * 用一次磁盘读读入连续的count个虚页，页框也连续时直接读入主存，否则读到临时数组后分发到各页框
+     */
+    private void readRun(int firstVPageNO, int[] frames, int from, int count) {
+        long diskAddr = (long) firstVPageNO * pageSize;
+        boolean contiguous = true;
+        for (int i = 1; i < count && contiguous; i++) {
+            contiguous = frames[from + i] == frames[from] + i;
+        }
+        if (contiguous) {
+            readDisk(diskAddr, physAddr(frames[from]), (long) count * pageSize);
+            return;
+        }
+        char[] data = new char[count * pageSize];
+        disk.read(diskAddr, data.length, data, 0);
+        for (int i = 0; i < count; i++) {
+            memory.write(physAddr(frames[from + i]), data, i * pageSize, pageSize);
+        }
+    }
+
+    /**
+     * @return 段页式下全部段的缺页次数
+     */
+    public synchronized long getTotalPageFaults() {
+        return totalPageFaults;
+    }
+
+    /**
+     * @return 分段模式下缺段(段不在内存)的次数
+     */
+    public synchronized long getTotalSegmentFaults() {
+        return totalSegmentFaults;
+    }
+
+    public synchronized void resetFaultCounters() {
+        totalPageFaults = 0L;
+        totalSegmentFaults = 0L;
+        zeroPageFaults = 0L;
+        zeroPageCopies = 0L;
+    }
+
+    public synchronized boolean isPageResident(int vPageNO) {
+        PageItem pItem = pageItem(vPageNO);
+        return pItem != null && pItem.isInMem();
+    }
+
+    /**
+     * 段页式下立即释放虚页占用的页框，用于流式读取时释放已经被消费的页
+     */
+    public synchronized void releasePage(int vPageNO) {
+        unmapPage(vPageNO, false);
+    }
+
+    /**
+     * 解除虚页的映射：零页和共享页框上的虚页只解除本页，私有页框被释放
      *
-     * @param segSelector 新添加到段表项的索引，int类型
-     * @param eip         32-bits,对应段表项中的base
-     * @param len         32-bits,其后31位对应段的长度（那第一位是用来干嘛的？
-     * @param isValid     标识段是否在内存中
-     * @param disk_base   32-bits，对应段表项中段disk_base,即段在磁盘中存储段物理位置
+     * @param swapOut 私有页框是否放入压缩交换层，流式读取已经消费的页不会再被访问，不放入
      */
-    // 这个方法就是向段表项中增加一项
-    public void alloc_seg_force(int segSelector, String eip, int len, boolean isValid, String disk_base) {
-        SegDescriptor sd = new SegDescriptor(); // 新的段表项
-        Transformer t = new Transformer();
-        sd.setDisk(disk_base.toCharArray());
-        sd.setBase(eip.toCharArray());
-        sd.setLimit(t.intToBinary(String.valueOf(len)).substring(1, 32).toCharArray());
-        sd.setValidBit(isValid);
-        Memory.segTbl.add(segSelector, sd); // 将新的段表项添加到段表中，segSelector是索引
+    private void unmapPage(int vPageNO, boolean swapOut) {
+        PageItem pItem = pageTbl(vPageNO);
+        if (!pItem.isInMem()) {
+            return;
+        }
+        if (!pItem.isZero() && reversedPageTbl(pItem.frameNO).sharers != null) {
+            detach(pItem.frameNO, vPageNO);
+        } else if (!pItem.isZero()) {
+            evictFrame(pItem.frameNO, swapOut);
+            return;
+        }
+        pItem.setInMem(false);
     }
 
     /**
-     * 清空段表页表，用于测试用例
+     * @return 段页式下空闲的页框数
      */
-    public void clear() {
-        segTbl = new ArrayList<>();
-        for (PageItem pItem : pageTbl) {
-            if (pItem != null) {
-                pItem.isInMem = false;
+    public synchronized int getFreeFrames() {
+        return frameAllocator.freeFrames();
+    }
+
+    public int getFrameQuota(int segNO) {
+        return segTbl.get(segNO).frameQuota;
+    }
+
+    public int getResidentFrames(int segNO) {
+        return segTbl.get(segNO).residentFrames;
+    }
+
+    public long getPageFaults(int segNO) {
+        return segTbl.get(segNO).pageFaults;
+    }
+
+    /**
+     * @return 段的缺页率，即缺页次数/访问页次数
+     */
+    public double getFaultRate(int segNO) {
+        SegDescriptor sd = segTbl.get(segNO);
+        return sd.refCount == 0 ? 0.0 : (double) sd.pageFaults / sd.refCount;
+    }
+
+    /**
+     * 为缺页的段分配页框
+     * 段已用满配额时在段内按LRU替换；否则优先从页框分配位图中取空闲页框，
+     * 没有空闲页框时回收超出配额或空闲的其他段中最久未用的页框，都没有时退化为段内LRU替换
+     */
+    private int allocFrame(int segNO, SegDescriptor sd) {
+        if (sd.residentFrames < sd.frameQuota) {
+            if (runNext < runEnd) {
+                return runNext++;
+            }
+            int free = frameAllocator.alloc();
+            if (free >= 0) {
+                return free;
+            }
+            int victim = -1;
+            for (int i = nextFrame(0); i >= 0; i = nextFrame(i + 1)) {
+                ReversedPageItem rItem = rItem(i);
+                if (rItem == null || !rItem.isValid || rItem.segNO == segNO || rItem.segNO >= segTbl.size() || pinned.get(i)) {
+                    continue;
+                }
+                SegDescriptor owner = segTbl.get(rItem.segNO);
+                boolean reclaimable = owner.residentFrames > owner.frameQuota || refClock - owner.lastRef > IDLE_WINDOW;
+                if (reclaimable && (victim < 0 || rItem.timeStamp < rItem(victim).timeStamp)) {
+                    victim = i;
+                }
+            }
+            if (victim >= 0) {
+                SegDescriptor owner = segTbl.get(rItem(victim).segNO);
+                evictFrame(victim);
+                owner.frameQuota = Math.max(1, Math.min(owner.frameQuota, owner.residentFrames));
+                frameAllocator.take(victim);
+                directReclaims++;
+                return victim;
+            }
+        }
+        int victim = lruFrame(segNO);
+        if (victim < 0) {
+            // 段内没有可替换的页框(配额被其他段占满)，替换全局最久未用的页框
+            victim = lruFrame(-1);
+        }
+        if (victim < 0) {
+            // 没有任何页框可以替换(例如配额已满但页框都被释放)，直接分配空闲页框，都没有时返回-1
+            return runNext < runEnd ? runNext++ : frameAllocator.alloc();
+        }
+        evictFrame(victim);
+        frameAllocator.take(victim);
+        directReclaims++;
+        return victim;
+    }
+
+    /**
+     * 释放段的页框直到段只剩keep个页框，按LRU顺序释放
+     */
+    private void releaseFrames(int segNO, int keep) {
+        SegDescriptor sd = segTbl.get(segNO);
+        if (sd.residentFrames <= keep) {
+            return;
+        }
+        ArrayList<Integer> frames = new ArrayList<>();
+        for (int i = nextFrame(0); i >= 0; i = nextFrame(i + 1)) {
+            ReversedPageItem rItem = rItem(i);
+            if (rItem != null && rItem.isValid && rItem.segNO == segNO && !pinned.get(i)) {
+                frames.add(i);
             }
         }
+        frames.sort((a, b) -> Long.compare(rItem(a).timeStamp, rItem(b).timeStamp));
+        // 正在加载的页框不在候选中，但同样占用配额
+        int excess = Math.min(frames.size(), sd.residentFrames - keep);
+        for (int i = 0; i < excess; i++) {
+            evictFrame(frames.get(i));
+        }
     }
 
     /**
-     * 强制使段/页失效，仅用于测试用例
-     *
-     * @param segNO
-     * @param pageNO
+     * @param segNO 为-1时在全部页框中查找
+     * @return 段内最久未用的页框号，没有则返回-1
      */
-    public void invalid(int segNO, int pageNO) {
-        if (segNO >= 0) {
-            segTbl.get(segNO).validBit = false;
+    private int lruFrame(int segNO) {
+        int victim = -1;
+        for (int i = nextFrame(0); i >= 0; i = nextFrame(i + 1)) {
+            ReversedPageItem rItem = rItem(i);
+            if (rItem == null || !rItem.isValid || (segNO >= 0 && rItem.segNO != segNO) || pinned.get(i)) {
+                continue;
+            }
+            if (victim < 0 || rItem.timeStamp < rItem(victim).timeStamp) {
+                victim = i;
+            }
         }
-        if (Memory.PAGE) {
-            if (pageNO >= 0) {
-                pageTbl(pageNO).setInMem(false);
+        return victim;
+    }
+
+    private void evictFrame(int frameNO) {
+        evictFrame(frameNO, true);
+    }
+
+    /**
+     * @param swapOut 是否把未修改的页框内容放入压缩交换层(已开启时)，共享页框按其上的每个未修改的虚页分别放入
+     */
+    private void evictFrame(int frameNO, boolean swapOut) {
+        ReversedPageItem rItem = reversedPageTbl(frameNO);
+        if (!rItem.isValid) {
+            return;
+        }
+        EventTrace.emit(EventTrace.Type.EVICT_FRAME, rItem.segNO, rItem.vPageNO, frameNO, 0L);
+        swapOut = swapOut && swap != null;
+        if (swapOut && !pageTbl(rItem.vPageNO).dirty) {
+            swap.put((long) rItem.vPageNO * pageSize, memory.chunk(physAddr(frameNO)), memory.offset(physAddr(frameNO)), pageSize);
+        }
+        pageTbl(rItem.vPageNO).setInMem(false);
+        if (rItem.sharers != null) {
+            // 共享页框上的虚页全部失效
+            for (int[] sharer : rItem.sharers) {
+                if (swapOut && !pageTbl(sharer[1]).dirty) {
+                    swap.put((long) sharer[1] * pageSize, memory.chunk(physAddr(frameNO)), memory.offset(physAddr(frameNO)), pageSize);
+                }
+                pageTbl(sharer[1]).setInMem(false);
             }
+            framesSaved -= rItem.sharers.size();
+            rItem.sharers = null;
         }
+        if (rItem.segNO < segTbl.size()) {
+            segTbl.get(rItem.segNO).residentFrames--;
+        }
+        rItem.isValid = false;
+        rItem.vPageNO = -1;
+        rItem.segNO = -1;
+        frameAllocator.free(frameNO);
     }
 
     public PageItem pageTbl(int index) { // private改为public
-        if (pageTbl[index] == null) {
-            pageTbl[index] = new PageItem();
-            return pageTbl[index];
-        } else {
-            return pageTbl[index];
+        PageItem[] dir = pageTbl[index / PAGE_DIR_SIZE];
+        if (dir == null) {
+            dir = pageTbl[index / PAGE_DIR_SIZE] = new PageItem[PAGE_DIR_SIZE];
+        }
+        if (dir[index % PAGE_DIR_SIZE] == null) {
+            dir[index % PAGE_DIR_SIZE] = new PageItem();
+        }
+        return dir[index % PAGE_DIR_SIZE];
+    }
+
+    /**
+     * @return 页表项，未创建时返回null(不分配)
+     */
+    private PageItem pageItem(int index) {
+        if (index < 0 || index / PAGE_DIR_SIZE >= pageTbl.length) {
+            return null;
         }
+        PageItem[] dir = pageTbl[index / PAGE_DIR_SIZE];
+        return dir == null ? null : dir[index % PAGE_DIR_SIZE];
+    }
+
+    /**
+     * @return 页框的物理地址
+     */
+    private long physAddr(int frameNO) {
+        return (long) frameNO * pageSize;
+    }
+
+    /**
+     * @return 页表项中的页框号，20位；主存超过2^20个页框时按页框号实际需要的位数
+     */
+    private char[] frameAddr(int frameNO) {
+        String bits = t.intToBinary(String.valueOf(frameNO));
+        return bits.substring(Math.min(12, Integer.numberOfLeadingZeros(frameNO))).toCharArray();
     }
 
 
     ReversedPageItem reversedPageTbl(int index) {
-        if (reversedPageTbl[index] == null) {
-            reversedPageTbl[index] = new ReversedPageItem();
-            return reversedPageTbl[index];
-        } else {
-            return reversedPageTbl[index];
+        ReversedPageItem[] group = reversedPageTbl[index / framesPerGroup];
+        if (group == null) {
+            group = reversedPageTbl[index / framesPerGroup] = new ReversedPageItem[framesPerGroup];
+        }
+        if (group[index % framesPerGroup] == null) {
+            group[index % framesPerGroup] = new ReversedPageItem();
+        }
+        return group[index % framesPerGroup];
+    }
+
+    /**
+     * @return 反向页表项，未创建时返回null(不分配)
+     */
+    private ReversedPageItem rItem(int index) {
+        ReversedPageItem[] group = reversedPageTbl[index / framesPerGroup];
+        return group == null ? null : group[index % framesPerGroup];
+    }
+
+    /**
+     * @return 从from开始第一个有反向页表项的页框号，整组跳过未分配的组，没有返回-1
+     */
+    private int nextFrame(int from) {
+        for (int i = from; i < frameCount; i++) {
+            ReversedPageItem[] group = reversedPageTbl[i / framesPerGroup];
+            if (group == null) {
+                i = (i / framesPerGroup + 1) * framesPerGroup - 1;
+            } else if (group[i % framesPerGroup] != null) {
+                return i;
+            }
         }
+        return -1;
     }
 
 
@@ -183,6 +1816,10 @@ public class Memory {
 
         private char[] limit = new char[31]; // 31位限长，表示段在内存中的长度
 
+        private int baseValue = 0;           // 基址和限长的数值，在设置时解析一次，访问路径上不再解析字符串
+
+        private int limitValue = 0;
+
         private boolean validBit = false;    // 有效位,为true表示被占用（段已在内存中），为false表示空闲（不在内存中）
 
         private long timeStamp = 0l;
@@ -190,8 +1827,32 @@ public class Memory {
         // 段在物理磁盘中的存储位置，真实段描述符里不包含此字段，本作业规定，段在磁盘中连续存储，并且磁盘中的存储位置不会发生变化
         private char[] disk_base = new char[32];
 
+        // 以下字段仅用于段页式下的页框配额管理，真实段描述符里不包含
+        private int frameQuota = 0;         // 段可以占用的页框数，0表示尚未分配
+
+        private int residentFrames = 0;     // 段当前占用的页框数
+
+        private long refCount = 0L;         // 段内页的访问次数
+
+        private long pageFaults = 0L;       // 段内缺页次数
+
+        private long lastFaultRef = 0L;     // 上一次缺页时的refCount
+
+        private long lastRef = 0L;          // 最近一次访问时的全局时钟
+
+        // 以下字段仅用于分段模式下的按需分块加载
+        private BitSet residentChunks = null; // 段内各块是否已加载，为null表示段在内存时已全部加载
+
+        private int generation = 0;           // 段每次被换出或失效时加一，用于取消后台加载
+
+        private boolean warmQueued = false;   // 段已排入预热队列，预热开始前缺段时只加载访问到的块
+
+        private boolean dirty = false;        // 段在内存期间是否被写入，写入的数据不会写回磁盘，换出时不能进入压缩交换层
+
+        private volatile int version = 0;     // 基址、限长、磁盘基址改变或段被换出、失效、在段表中移动时加一，MMU据此判断段寄存器的描述符缓存是否过期
+
         public SegDescriptor() {
-            timeStamp = System.currentTimeMillis();
+            timeStamp = ++refClock;
         }
 
         public char[] getBase() {
@@ -200,6 +1861,8 @@ public class Memory {
 
         public void setBase(char[] base) {
             this.base = base;
+            this.baseValue = Integer.parseInt(t.binaryToInt(String.valueOf(base)));
+            version++;
         }
 
         public char[] getDisk() {
@@ -208,6 +1871,7 @@ public class Memory {
 
         public void setDisk(char[] base) {
             this.disk_base = base;
+            version++;
         }
 
         public char[] getLimit() {
@@ -216,6 +1880,12 @@ public class Memory {
 
         public void setLimit(char[] limit) {
             this.limit = limit;
+            this.limitValue = Integer.parseInt(t.binaryToInt(String.valueOf(limit)));
+            version++;
+        }
+
+        public int getVersion() {
+            return version;
         }
 
         public boolean isValidBit() {
@@ -231,7 +1901,27 @@ public class Memory {
         }
 
         public void updateTimeStamp() {
-            this.timeStamp = System.currentTimeMillis();
+            this.timeStamp = ++refClock;
+        }
+
+        public int baseValue() {
+            return baseValue;
+        }
+
+        public int limitValue() {
+            return limitValue;
+        }
+
+        /**
+         * 段被换出或失效，正在进行的后台加载随之取消
+         */
+        void evict() {
+            validBit = false;
+            dirty = false;
+            residentChunks = null;
+            warmQueued = false;
+            version++;
+            generation++;
         }
     }
 
@@ -245,8 +1935,14 @@ public class Memory {
 
         private char[] frameAddr;
 
+        private int frameNO = -1;   // frameAddr对应的整数页框号，避免每次访问都重新解析
+
         public boolean isInMem = false; // 改private为public
 
+        private boolean zero = false;   // 映射到共享的零页框，只读，第一次写入时才分配私有页框
+
+        private boolean dirty = false;  // 页在内存期间是否被写入，换出时不能进入压缩交换层
+
         public char[] getFrameAddr() {
             return frameAddr;
         }
@@ -261,6 +1957,14 @@ public class Memory {
 
         public void setInMem(boolean inMem) {
             isInMem = inMem;
+            if (!inMem) {
+                zero = false;
+                dirty = false;
+            }
+        }
+
+        public boolean isZero() {
+            return isInMem && zero;
         }
 
     }
@@ -274,16 +1978,95 @@ public class Memory {
 
         private int vPageNO = -1;           // 虚页页号
 
-        private long timeStamp = System.currentTimeMillis();
+        private int segNO = -1;             // 占用该页框的段，用于按段统计和回收页框
+
+        private ArrayList<int[]> sharers;   // 去重后共享该页框的其他虚页{段号, 虚页号}，页框只计入segNO所在的段；未共享时为null
+
+        private long timeStamp = 0L;        // 最近一次访问时的全局时钟，毫秒时间戳不足以区分同一毫秒内的访问
 
         public long getTimeStamp() {
             return this.timeStamp;
         }
 
         public void updateTimeStamp() {
-            this.timeStamp = System.currentTimeMillis();
+            this.timeStamp = ++refClock;
+        }
+
+    }
+
+    /**
+     * 构造独立的内存系统实例，每个实例拥有自己的段表、页表、主存和磁盘，多个实例可以在同一个JVM中并发运行
+     * 未设置的参数取默认值：实模式、MEM_SIZE_B、PAGE_SIZE_B、Disk.DISK_SIZE_B，未指定磁盘镜像路径时按Disk.DISK_BACKEND创建磁盘
+     */
+    public static class Builder {
+
+        private boolean segment = false;
+
+        private boolean page = false;
+
+        private long memSize = MEM_SIZE_B;
+
+        private int pageSize = PAGE_SIZE_B;
+
+        private String diskPath = null;
+
+        private long diskSize = Disk.DISK_SIZE_B;
+
+        private Disk disk = null;
+
+        private Builder() {
+        }
+
+        public Builder segment(boolean segment) {
+            this.segment = segment;
+            return this;
+        }
+
+        public Builder page(boolean page) {
+            this.page = page;
+            return this;
+        }
+
+        public Builder memSize(long memSize) {
+            this.memSize = memSize;
+            return this;
+        }
+
+        public Builder pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public Builder diskPath(String diskPath) {
+            this.diskPath = diskPath;
+            return this;
+        }
+
+        public Builder diskSize(long diskSize) {
+            this.diskSize = diskSize;
+            return this;
+        }
+
+        /**
+         * 直接使用已有的磁盘，设置后忽略diskPath和diskSize
+         */
+        public Builder disk(Disk disk) {
+            this.disk = disk;
+            return this;
         }
 
+        public Memory build() {
+            if (page && !segment) {
+                throw new IllegalArgumentException("段页式需要同时开启分段");
+            }
+            if (pageSize <= 0 || memSize % pageSize != 0) {
+                throw new IllegalArgumentException("主存大小必须是页大小的整数倍");
+            }
+            Disk d = disk != null ? disk : diskPath != null ? new Disk(diskPath, diskSize) : Disk.newDefault(diskSize);
+            Memory memory = new Memory(d, memSize, pageSize, segment, page, false);
+            memory.ownsDisk = disk == null;
+            return memory;
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+package memory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 按long地址访问的主存，分成若干个定长的块，每块在第一次写入时才分配，未分配的块读出为0
+ * 主存大小因此可以超过2G(单个数组的上限)，模拟几十G的主存时也只为实际用到的部分分配堆内存
+ *
+ * 块大小是页大小的整数倍，页框不会跨越两个块，按页框操作时可以直接使用块数组(chunk / offset)；
+ * 跨块的区间由read/write/copy按块拆分
+ * 块的分配用CAS完成，多个线程(如并行加载段的线程)可以同时写入不同的区间
+ */
+class PhysicalMemory {
+
+	static final int CHUNK_SIZE_B = 1024 * 1024;    // 块大小的下限 1 MB，实际取页大小的整数倍
+
+	private final long size;
+
+	private final int chunkSize;
+
+	private final AtomicReferenceArray<char[]> chunks;
+
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * @param size 主存大小(字节)
+	 * @param unit 块大小必须是它的整数倍，通常为页大小
+	 */
+	PhysicalMemory(long size, int unit) {
+		this.size = size;
+		this.chunkSize = unit * Math.max(1, CHUNK_SIZE_B / unit);
+		this.chunks = new AtomicReferenceArray<>((int) ((size + chunkSize - 1) / chunkSize));
+	}
+
+	long size() {
+		return size;
+	}
+
+	int chunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return 已经分配的字节数
+	 */
+	long allocatedBytes() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return 地址所在的块数组，未分配时先分配
+	 */
+	char[] chunk(long addr) {
+		int index = (int) (addr / chunkSize);
+		char[] chunk = chunks.get(index);
+		if (chunk == null) {
+			int len = (int) Math.min(chunkSize, size - (long) index * chunkSize);
+			if (chunks.compareAndSet(index, null, new char[len])) {
+				allocated.addAndGet(len);
+			}
+			chunk = chunks.get(index);
+		}
+		return chunk;
+	}
+
+	/**
+	 * @return 地址在所在块数组中的下标
+	 */
+	int offset(long addr) {
+		return (int) (addr % chunkSize);
+	}
+
+	/**
+	 * @return 从addr开始到所在块末尾的长度，不超过len
+	 */
+	int span(long addr, long len) {
+		return (int) Math.min(chunkSize - addr % chunkSize, len);
+	}
+
+	char get(long addr) {
+		char[] chunk = chunks.get((int) (addr / chunkSize));
+		return chunk == null ? 0 : chunk[offset(addr)];
+	}
+
+	void read(long addr, char[] dest, int destPos, int len) {
+		for (int done = 0; done < len; ) {
+			int n = span(addr + done, len - done);
+			char[] chunk = chunks.get((int) ((addr + done) / chunkSize));
+			if (chunk == null) {
+				Arrays.fill(dest, destPos + done, destPos + done + n, (char) 0);
+			} else {
+				System.arraycopy(chunk, offset(addr + done), dest, destPos + done, n);
+			}
+			done += n;
+		}
+	}
+
+	void write(long addr, char[] src, int srcPos, int len) {
+		for (int done = 0; done < len; ) {
+			int n = span(addr + done, len - done);
+			System.arraycopy(src, srcPos + done, chunk(addr + done), offset(addr + done), n);
+			done += n;
+		}
+	}
+
+	/**
+	 * 填充[addr, addr + len)，填0时跳过未分配的块
+	 */
+	void fill(long addr, long len, char value) {
+		for (long done = 0; done < len; ) {
+			int n = span(addr + done, len - done);
+			char[] chunk = value == 0 ? chunks.get((int) ((addr + done) / chunkSize)) : chunk(addr + done);
+			if (chunk != null) {
+				Arrays.fill(chunk, offset(addr + done), offset(addr + done) + n, value);
+			}
+			done += n;
+		}
+	}
+
+	/**
+	 * 把[from, from + len)复制到[to, to + len)，按地址从低到高逐段复制，只支持to <= from(碎片整理时段向低地址移动)
+	 */
+	void copy(long from, long to, long len) {
+		for (long done = 0; done < len; ) {
+			int n = Math.min(span(from + done, len - done), span(to + done, len - done));
+			System.arraycopy(chunk(from + done), offset(from + done), chunk(to + done), offset(to + done), n);
+			done += n;
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package memory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 不访问文件系统的磁盘后端
+ *
+ * 未写过的位置按布局描述即时计算内容，不占用内存；写入的数据按页保存在堆上的稀疏表中，
+ * 页第一次被写时先按布局生成整页内容再覆盖写入部分
+ */
+public class ProceduralDiskBackend implements DiskBackend {
+
+	private static final int PAGE_SIZE_B = 4 * 1024;
+
+	private final long size;
+
+	private final long[] regionEnd;      // 各区间的结束地址(不含)，超出最后一个区间的部分为0
+
+	private final byte[] regionValue;   // 各区间的填充字节
+
+	private final ConcurrentHashMap<Long, byte[]> written = new ConcurrentHashMap<>();
+
+	/**
+	 * 使用与磁盘镜像文件相同的默认布局，见Disk.DEFAULT_LAYOUT
+	 */
+	public ProceduralDiskBackend(long size) {
+		this(size, Disk.DEFAULT_LAYOUT);
+	}
+
+	/**
+	 * @param size   磁盘大小(字节)
+	 * @param layout 布局描述，每项为{区间长度(字节), 填充字节}，区间从0开始依次相连
+	 */
+	public ProceduralDiskBackend(long size, int[][] layout) {
+		this.size = size;
+		this.regionEnd = new long[layout.length];
+		this.regionValue = new byte[layout.length];
+		long end = 0L;
+		for (int i = 0; i < layout.length; i++) {
+			end += layout[i][0];
+			regionEnd[i] = end;
+			regionValue[i] = (byte) layout[i][1];
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int off, int len) {
+		long pos = position;
+		long end = pos + len;
+		while (pos < end) {
+			long pageNO = pos / PAGE_SIZE_B;
+			int n = (int) Math.min(PAGE_SIZE_B - pos % PAGE_SIZE_B, end - pos);
+			byte[] page = written.get(pageNO);
+			if (page != null) {
+				System.arraycopy(page, (int) (pos % PAGE_SIZE_B), dest, off, n);
+			} else {
+				generate(pos, dest, off, n);
+			}
+			pos += n;
+			off += n;
+		}
+	}
+
+	@Override
+	public synchronized void write(long position, byte[] src, int off, int len) {
+		long pos = position;
+		long end = pos + len;
+		while (pos < end) {
+			long pageNO = pos / PAGE_SIZE_B;
+			int n = (int) Math.min(PAGE_SIZE_B - pos % PAGE_SIZE_B, end - pos);
+			byte[] page = written.get(pageNO);
+			if (page == null) {
+				page = new byte[PAGE_SIZE_B];
+				generate(pageNO * PAGE_SIZE_B, page, 0, PAGE_SIZE_B);
+			}
+			System.arraycopy(src, off, page, (int) (pos % PAGE_SIZE_B), n);
+			written.put(pageNO, page);
+			pos += n;
+			off += n;
+		}
+	}
+
+	/**
+	 * 未写过的部分按布局判断，写过的页检查保存的内容
+	 */
+	@Override
+	public boolean isZero(long position, int len) {
+		long pos = position;
+		long end = pos + len;
+		while (pos < end) {
+			long pageNO = pos / PAGE_SIZE_B;
+			int n = (int) Math.min(PAGE_SIZE_B - pos % PAGE_SIZE_B, end - pos);
+			byte[] page = written.get(pageNO);
+			if (page != null) {
+				for (int i = (int) (pos % PAGE_SIZE_B); i < pos % PAGE_SIZE_B + n; i++) {
+					if (page[i] != 0) {
+						return false;
+					}
+				}
+			} else if (!isZeroRegion(pos, n)) {
+				return false;
+			}
+			pos += n;
+		}
+		return true;
+	}
+
+	/**
+	 * @return 已被写过、保存在内存中的页数
+	 */
+	public int getWrittenPages() {
+		return written.size();
+	}
+
+	private boolean isZeroRegion(long pos, int len) {
+		int region = 0;
+		while (region < regionEnd.length && regionEnd[region] <= pos) {
+			region++;
+		}
+		for (; region < regionEnd.length && (region == 0 || regionEnd[region - 1] < pos + len); region++) {
+			if (regionValue[region] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 按布局计算[pos, pos + len)的内容
+	 */
+	private void generate(long pos, byte[] dest, int off, int len) {
+		long end = pos + len;
+		int region = 0;
+		while (region < regionEnd.length && regionEnd[region] <= pos) {
+			region++;
+		}
+		while (pos < end) {
+			long regionLimit = region < regionEnd.length ? Math.min(regionEnd[region], end) : end;
+			byte value = region < regionValue.length ? regionValue[region] : 0;
+			Arrays.fill(dest, off, (int) (off + regionLimit - pos), value);
+			off += (int) (regionLimit - pos);
+			pos = regionLimit;
+			region++;
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 条带化(RAID-0)的磁盘后端，磁盘地址空间按条带大小切分后轮流放在N个镜像文件中，镜像文件可以位于不同的挂载点
+ *
+ * 	第s个条带(磁盘地址 / 条带大小)放在第 s % N 个文件中，文件内偏移为 (s / N) * 条带大小 + 条带内偏移
+ * 	逻辑上的字节布局与单个镜像文件相同(见Disk类注释)，镜像文件不存在时按Disk.DEFAULT_LAYOUT生成各自的条带
+ * 一次读写按文件拆分：同一个文件上的条带在文件内是连续的，合并成一次按位置读写；
+ * 	涉及多个文件时各文件的读写并行发出，调用线程处理其中一个文件，全部完成后返回
+ */
+public class StripedDiskBackend implements DiskBackend {
+
+	private static final ExecutorService stripeWorkers = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "disk-stripe-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final FileDiskBackend[] members;
+
+	private final long size;
+
+	private final int stripeSize;
+
+	/**
+	 * @param paths      各镜像文件路径，文件数即条带宽度
+	 * @param size       磁盘大小(字节)
+	 * @param stripeSize 条带大小(字节)
+	 */
+	public StripedDiskBackend(String[] paths, long size, int stripeSize) {
+		if (paths.length == 0 || stripeSize <= 0) {
+			throw new IllegalArgumentException("至少需要一个镜像文件，条带大小必须大于0");
+		}
+		this.size = size;
+		this.stripeSize = stripeSize;
+		this.members = new FileDiskBackend[paths.length];
+		long stripes = (size + stripeSize - 1) / stripeSize;
+		long memberSize = (stripes + paths.length - 1) / paths.length * stripeSize;
+		for (int i = 0; i < paths.length; i++) {
+			synchronized (StripedDiskBackend.class) {
+				if (!new File(paths[i]).exists()) {
+					format(paths[i], i, memberSize);
+				}
+			}
+			members[i] = new FileDiskBackend(paths[i], memberSize);
+		}
+	}
+
+	/**
+	 * 镜像文件为 prefix.0 ... prefix.(count - 1)
+	 */
+	public StripedDiskBackend(String prefix, int count, long size, int stripeSize) {
+		this(memberPaths(prefix, count), size, stripeSize);
+	}
+
+	private static String[] memberPaths(String prefix, int count) {
+		String[] paths = new String[count];
+		for (int i = 0; i < count; i++) {
+			paths[i] = prefix + "." + i;
+		}
+		return paths;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	public int getStripeSize() {
+		return stripeSize;
+	}
+
+	public int getWidth() {
+		return members.length;
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int off, int len) throws IOException {
+		transfer(position, dest, off, len, false);
+	}
+
+	@Override
+	public void write(long position, byte[] src, int off, int len) throws IOException {
+		transfer(position, src, off, len, true);
+	}
+
+	@Override
+	public void force() throws IOException {
+		for (FileDiskBackend member : members) {
+			member.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (FileDiskBackend member : members) {
+			try {
+				member.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * 按文件拆分后读写，各文件并行
+	 */
+	private void transfer(long position, byte[] data, int off, int len, boolean write) throws IOException {
+		if (len <= 0) {
+			return;
+		}
+		long firstStripe = position / stripeSize;
+		long lastStripe = (position + len - 1) / stripeSize;
+		if (firstStripe == lastStripe) {
+			// 不跨条带，直接在调用线程读写
+			FileDiskBackend member = members[(int) (firstStripe % members.length)];
+			long memberPos = firstStripe / members.length * stripeSize + position % stripeSize;
+			if (write) {
+				member.write(memberPos, data, off, len);
+			} else {
+				member.read(memberPos, data, off, len);
+			}
+			return;
+		}
+		int width = (int) Math.min(members.length, lastStripe - firstStripe + 1);
+		List<Future<?>> pending = new ArrayList<>();
+		for (int i = 1; i < width; i++) {
+			final long stripe = firstStripe + i;
+			pending.add(stripeWorkers.submit(() -> {
+				transferMember(stripe, lastStripe, position, data, off, len, write);
+				return null;
+			}));
+		}
+		transferMember(firstStripe, lastStripe, position, data, off, len, write);
+		for (Future<?> future : pending) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * 读写[position, position + len)中从条带first开始、每隔N个条带所在的部分，这些条带都在同一个文件中且在文件内连续
+	 */
+	private void transferMember(long first, long lastStripe, long position, byte[] data, int off, int len, boolean write) throws IOException {
+		FileDiskBackend member = members[(int) (first % members.length)];
+		long last = first + (lastStripe - first) / members.length * members.length;
+		long end = position + len;
+		long from = Math.max(position, first * stripeSize);        // 第一个条带中的起点
+		long to = Math.min(end, (last + 1) * stripeSize);          // 最后一个条带中的终点
+		long memberFrom = first / members.length * stripeSize + from % stripeSize;
+		int memberLen = (int) ((last - first) / members.length * stripeSize + (to - last * stripeSize) - from % stripeSize);
+		byte[] buffer = new byte[memberLen];
+		if (write) {
+			scatter(first, last, position, data, off, end, buffer, from, true);
+			member.write(memberFrom, buffer, 0, memberLen);
+		} else {
+			member.read(memberFrom, buffer, 0, memberLen);
+			scatter(first, last, position, data, off, end, buffer, from, false);
+		}
+	}
+
+	/**
+	 * 在文件内连续的缓冲区与磁盘地址上的各条带之间复制数据
+	 *
+	 * @param toBuffer 为true时从data复制到buffer，否则从buffer复制到data
+	 */
+	private void scatter(long first, long last, long position, byte[] data, int off, long end, byte[] buffer, long from, boolean toBuffer) {
+		int bufferPos = 0;
+		for (long stripe = first; stripe <= last; stripe += members.length) {
+			long start = Math.max(from, stripe * stripeSize);
+			int n = (int) (Math.min(end, (stripe + 1) * stripeSize) - start);
+			int dataPos = (int) (off + start - position);
+			if (toBuffer) {
+				System.arraycopy(data, dataPos, buffer, bufferPos, n);
+			} else {
+				System.arraycopy(buffer, bufferPos, data, dataPos, n);
+			}
+			bufferPos += n;
+		}
+	}
+
+	/**
+	 * 按默认布局生成第index个文件中的条带
+	 */
+	private void format(String path, int index, long memberSize) {
+		ProceduralDiskBackend layout = new ProceduralDiskBackend(size);
+		byte[] stripe = new byte[stripeSize];
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+			for (long s = index; (s / members.length) * stripeSize < memberSize; s += members.length) {
+				long start = s * stripeSize;
+				int n = (int) Math.max(0, Math.min(stripeSize, size - start));
+				Arrays.fill(stripe, (byte) 0);
+				if (n > 0) {
+					layout.read(start, stripe, 0, n);
+				}
+				file.write(stripe);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package driver;
+
+import cpu.MMU;
+import memory.Memory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 负载驱动和运行报告
+ */
+public class DriverTest {
+
+	/**
+	 * Situation: 1..100纳秒各一次访问，10次缺页，1秒墙钟时间
+	 */
+	@Test
+	public void test1() {
+		long[] latencies = new long[100];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = i + 1;
+		}
+		LoadReport report = new LoadReport(4, latencies, 1_000_000_000L, 10, -1L);
+		assertEquals(100, report.getAccesses());
+		assertEquals(50, report.getLatency(50));
+		assertEquals(99, report.getLatency(99));
+		assertEquals(100, report.getLatency(99.9));
+		assertEquals(100, report.getLatency(100));
+		assertEquals(1, report.getLatency(0.5));
+		assertEquals(0.1, report.getFaultRate(), 1e-9);
+		assertEquals(100.0, report.getThroughput(), 1e-9);
+		assertEquals(-1L, report.getSimulatedNanos());
+	}
+
+	/**
+	 * Situation: 没有访问
+	 */
+	@Test
+	public void test2() {
+		LoadReport report = new LoadReport(0, new long[0], 0L, 0, -1L);
+		assertEquals(0, report.getLatency(99));
+		assertEquals(0.0, report.getFaultRate(), 0.0);
+		assertEquals(0.0, report.getThroughput(), 0.0);
+	}
+
+	/**
+	 * Situation: 段页式下4个进程各顺序访问8次
+	 */
+	@Test
+	public void test3() throws Exception {
+		try (Memory memory = Memory.builder().segment(true).page(true).build()) {
+			LoadDriver.setUp(memory);
+			LoadReport report = new LoadDriver(new MMU(memory), 4, 8, 128, LoadDriver.Pattern.SEQUENTIAL, 2019L).run();
+			assertEquals(4, report.getProcesses());
+			assertEquals(32, report.getAccesses());
+			assertEquals(memory.getTotalPageFaults(), report.getFaults());
+			assertTrue(report.getFaults() >= 4);
+			assertTrue(report.getLatency(50) <= report.getLatency(100));
+		}
+	}
+
+	/**
+	 * Situation: 进程抛出的异常原样抛给调用者(读取长度超过段长，进程无法生成段内位置)
+	 */
+	@Test
+	public void test4() throws Exception {
+		try (Memory memory = Memory.builder().segment(true).page(true).build()) {
+			LoadDriver.setUp(memory);
+			try {
+				new LoadDriver(new MMU(memory), 2, 1, LoadDriver.SEG_SIZE_B + 1, LoadDriver.Pattern.UNIFORM, 2019L).run();
+				fail();
+			} catch (IllegalArgumentException e) {
+				// Random#nextInt的参数不是正数
+			}
+		}
+	}
+
+}
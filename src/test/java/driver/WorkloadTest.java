@@ -0,0 +1,167 @@
+package driver;
+
+import cpu.MMU;
+import memory.Memory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 合成访问流：固定种子下的访问位置和阶段报告
+ */
+public class WorkloadTest {
+
+	static final int READ_LEN = 128;
+
+	static final long SPAN = (long) LoadDriver.SEG_COUNT * LoadDriver.SEG_SIZE_B;
+
+	Memory memory;
+
+	MMU mmu;
+
+	@Before
+	public void before() {
+		memory = Memory.builder().segment(true).page(true).build();
+		mmu = new MMU(memory);
+	}
+
+	/**
+	 * Situation: 同一个种子产生相同的访问序列，不同种子不同
+	 */
+	@Test
+	public void test1() {
+		List<WorkloadGenerator.Phase> phases = new ArrayList<>();
+		for (String spec : new String[]{"zipf:2000", "sequential:2000", "strided:2000", "looping:2000", "uniform:2000"}) {
+			phases.add(WorkloadGenerator.Phase.parse(spec));
+		}
+		WorkloadGenerator a = new WorkloadGenerator(mmu, READ_LEN, 2019L);
+		WorkloadGenerator b = new WorkloadGenerator(mmu, READ_LEN, 2019L);
+		WorkloadGenerator c = new WorkloadGenerator(mmu, READ_LEN, 2020L);
+		for (WorkloadGenerator.Phase phase : phases) {
+			long[] expected = a.positions(phase);
+			assertArrayEquals(expected, b.positions(phase));
+			assertFalse(Arrays.equals(expected, c.positions(phase)));
+		}
+	}
+
+	/**
+	 * Situation: 各分布的访问都在地址空间内且不跨越段尾
+	 */
+	@Test
+	public void test2() {
+		WorkloadGenerator generator = new WorkloadGenerator(mmu, READ_LEN, 2019L);
+		for (WorkloadGenerator.Distribution distribution : WorkloadGenerator.Distribution.values()) {
+			for (long position : generator.positions(WorkloadGenerator.Phase.parse(distribution + ":5000"))) {
+				assertTrue(position >= 0 && position < SPAN);
+				assertTrue(position % LoadDriver.SEG_SIZE_B + READ_LEN <= LoadDriver.SEG_SIZE_B);
+			}
+		}
+	}
+
+	/**
+	 * Situation: 顺序扫描每次前进readLen，只在跨越段尾时例外；按步长前进时每次前进一个步长
+	 */
+	@Test
+	public void test3() {
+		WorkloadGenerator generator = new WorkloadGenerator(mmu, READ_LEN, 2019L);
+		long[] sequential = generator.positions(WorkloadGenerator.Phase.parse("sequential:20000"));
+		int steps = 0;
+		for (int i = 1; i < sequential.length; i++) {
+			if (Math.floorMod(sequential[i] - sequential[i - 1], SPAN) == READ_LEN) {
+				steps++;
+			}
+		}
+		// 20000次访问最多跨越3个段尾，每次跨越影响两步
+		assertTrue(steps >= sequential.length - 1 - 6);
+
+		long[] strided = generator.positions(WorkloadGenerator.Phase.parse("strided:5000:65536"));
+		for (int i = 1; i < strided.length; i++) {
+			assertEquals(65536, Math.floorMod(strided[i] - strided[i - 1], SPAN));
+		}
+	}
+
+	/**
+	 * Situation: 循环访问在4K的窗口内反复扫描，每32次访问重复一遍
+	 */
+	@Test
+	public void test4() {
+		WorkloadGenerator generator = new WorkloadGenerator(mmu, READ_LEN, 2019L);
+		long[] looping = generator.positions(WorkloadGenerator.Phase.parse("looping:1000:4096"));
+		Set<Long> distinct = new HashSet<>();
+		for (int i = 0; i < looping.length; i++) {
+			distinct.add(looping[i]);
+			if (i >= 4096 / READ_LEN) {
+				assertEquals(looping[i - 4096 / READ_LEN], looping[i]);
+			}
+		}
+		assertEquals(4096 / READ_LEN, distinct.size());
+	}
+
+	/**
+	 * Situation: Zipf分布按readLen对齐，最热的项远比均匀分布集中(skew=0.99时约占8%)
+	 */
+	@Test
+	public void test5() {
+		WorkloadGenerator generator = new WorkloadGenerator(mmu, READ_LEN, 2019L);
+		long[] zipf = generator.positions(WorkloadGenerator.Phase.parse("zipf:20000:0.99"));
+		Map<Long, Integer> counts = new HashMap<>();
+		for (long position : zipf) {
+			assertEquals(0, position % READ_LEN);
+			counts.merge(position, 1, Integer::sum);
+		}
+		int hottest = counts.values().stream().max(Integer::compare).get();
+		assertTrue(hottest > zipf.length / 20);
+		// 均匀分布下同一项几乎不会重复
+		long[] uniform = generator.positions(WorkloadGenerator.Phase.parse("uniform:20000"));
+		assertTrue(Arrays.stream(uniform).distinct().count() > uniform.length * 9 / 10);
+	}
+
+	/**
+	 * Situation: 阶段报告的缺页率和吞吐量，以及同一种子运行两次结果相同
+	 */
+	@Test
+	public void test6() {
+		PhaseReport report = new PhaseReport("zipf:0.99", 200, 50, 4096, 1_000_000_000L);
+		assertEquals(0.25, report.getFaultRate(), 1e-9);
+		assertEquals(200.0, report.getThroughput(), 1e-9);
+		assertEquals(0.0, new PhaseReport("uniform", 0, 0, 0, 0).getFaultRate(), 0.0);
+
+		List<WorkloadGenerator.Phase> phases = new ArrayList<>();
+		phases.add(WorkloadGenerator.Phase.parse("sequential:64"));
+		phases.add(WorkloadGenerator.Phase.parse("looping:64:4096"));
+		List<PhaseReport> first = new WorkloadGenerator(mmu, READ_LEN, 2019L).run(phases);
+		assertEquals(2, first.size());
+		assertEquals("SEQUENTIAL", first.get(0).getPhase());
+		assertEquals("LOOPING:4096", first.get(1).getPhase());
+		assertEquals(64, first.get(0).getAccesses());
+		assertTrue(first.get(0).getFaults() > 0);
+		assertTrue(first.get(0).getDiskBytes() > 0);
+
+		try (Memory other = Memory.builder().segment(true).page(true).build()) {
+			List<PhaseReport> second = new WorkloadGenerator(new MMU(other), READ_LEN, 2019L).run(phases);
+			for (int i = 0; i < phases.size(); i++) {
+				assertEquals(first.get(i).getFaults(), second.get(i).getFaults());
+				assertEquals(first.get(i).getDiskBytes(), second.get(i).getDiskBytes());
+			}
+		}
+	}
+
+	@After
+	public void after() {
+		memory.close();
+	}
+
+}
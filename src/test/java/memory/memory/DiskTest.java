@@ -0,0 +1,345 @@
+package memory.memory;
+
+import memory.Disk;
+import memory.DiskBackend;
+import memory.DiskCostModel;
+import memory.DiskScheduler;
+import memory.DiskWriteBuffer;
+import memory.FileDiskBackend;
+import memory.ProceduralDiskBackend;
+import memory.StripedDiskBackend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import transformer.Transformer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 磁盘块缓存
+ */
+public class DiskTest {
+
+	static MemTestHelper helper = new MemTestHelper();
+
+	Disk disk = Disk.getDisk();
+
+	@Before
+	public void init() {
+		disk.resetCache();
+	}
+
+	/**
+	 * Situation: 重复读同一区间命中缓存
+	 */
+	@Test
+	public void test1() {
+		char[] data = helper.fillData((char)0b00001111, 2048);
+		assertArrayEquals(data, disk.read("00000000000000000000000000000000", 2048));
+		assertEquals(0, disk.getCacheHits());
+		assertEquals(1, disk.getCacheMisses());
+		assertArrayEquals(data, disk.read("00000000000000000000000000000000", 2048));
+		assertEquals(1, disk.getCacheHits());
+		assertEquals(1, disk.getCacheMisses());
+	}
+
+	/**
+	 * Situation: 写磁盘后缓存保持一致
+	 */
+	@Test
+	public void test2() {
+		String eip = "00000000000000000000000000000000";
+		assertArrayEquals(helper.fillData((char)0b00001111, 128), disk.read(eip, 128));
+		char[] data = helper.fillData((char)0b00000011, 128);
+		disk.write(eip, 128, data);
+		assertArrayEquals(data, disk.read(eip, 128));
+		assertEquals(1, disk.getCacheHits());
+	}
+
+	/**
+	 * Situation: 大段顺序读不会冲掉反复访问的热块
+	 */
+	@Test
+	public void test3() {
+		Disk.CACHE_SIZE_B = 64 * 1024;
+		disk.resetCache();
+		String hot = "00000100000000000000000000000000";	// 64M处，0b00110011
+		disk.read(hot, 1024);
+		disk.read(hot, 1024);
+		char[] scan = helper.fillData((char)0b01010101, 1024 * 1024);
+		assertArrayEquals(scan, disk.read("00000010000000000000000000000000", 1024 * 1024));	// 32M处顺序读1M
+		disk.resetCacheStats();
+		assertArrayEquals(helper.fillData((char)0b00110011, 1024), disk.read(hot, 1024));
+		assertEquals(1, disk.getCacheHits());
+	}
+
+	/**
+	 * Situation: 按布局计算的磁盘与磁盘镜像文件内容一致
+	 */
+	@Test
+	public void test4() throws Exception {
+		// 镜像文件不存在时才按布局生成，临时文件先删除，只借用它的路径
+		Path image = Files.createTempFile("disk", ".vdev");
+		Files.delete(image);
+		try (Disk file = new Disk(image.toString(), Disk.DISK_SIZE_B);
+			 Disk procedural = new Disk(new ProceduralDiskBackend(Disk.DISK_SIZE_B))) {
+			// 跨越20M、32M和80M三处区间边界
+			String[] eips = {"00000001001111111111110000000000", "00000001111111111111110000000000", "00000100111111111111110000000000"};
+			for (String eip : eips) {
+				assertArrayEquals(file.read(eip, 2048), procedural.read(eip, 2048));
+			}
+		} finally {
+			Files.deleteIfExists(image);
+		}
+	}
+
+	/**
+	 * Situation: 并发读取相邻的块，经I/O调度合并成更少的传输
+	 */
+	@Test
+	public void test5() throws Exception {
+		Disk scheduled = new Disk(new ProceduralDiskBackend(Disk.DISK_SIZE_B));
+		DiskScheduler scheduler = scheduled.enableScheduler(20 * 1000);
+		int threads = 8;
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<char[]>> results = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			// 32M处开始的第i个4K块
+			String eip = new Transformer().intToBinary(String.valueOf(32 * 1024 * 1024 + i * 4 * 1024));
+			results.add(executor.submit(() -> {
+				start.await();
+				return scheduled.read(eip, 4 * 1024);
+			}));
+		}
+		start.countDown();
+		for (Future<char[]> result : results) {
+			assertArrayEquals(helper.fillData((char)0b01010101, 4 * 1024), result.get());
+		}
+		executor.shutdown();
+		scheduled.disableScheduler();
+		assertEquals(threads, scheduler.getRequests());
+		assertTrue(scheduler.getTransfers() < threads);
+	}
+
+	/**
+	 * Situation: 相邻的小写入在写缓冲区中合并，刷盘前读到的也是新数据
+	 */
+	@Test
+	public void test6() {
+		ProceduralDiskBackend backend = new ProceduralDiskBackend(Disk.DISK_SIZE_B);
+		Disk buffered = new Disk(backend);
+		DiskWriteBuffer buffer = buffered.enableWriteBuffer(64 * 1024, 0, false);
+		Transformer t = new Transformer();
+		int base = 80 * 1024 * 1024;
+		for (int i = 0; i < 32; i++) {
+			buffered.write(t.intToBinary(String.valueOf(base + i * 16)), 16, helper.fillData((char)0b00000001, 16));
+		}
+		String eip = t.intToBinary(String.valueOf(base));
+		// 后端还没有被写入，缓冲区中的数据覆盖后端的旧数据
+		assertEquals(0, buffer.getTransfers());
+		buffered.dropCache();
+		assertArrayEquals(helper.fillData((char)0b00000001, 512), buffered.read(eip, 512));
+		buffered.force();
+		assertEquals(32, buffer.getWrites());
+		assertEquals(1, buffer.getTransfers());
+		assertEquals(0, buffer.getDirtyBytes());
+		assertArrayEquals(helper.fillData((char)0b00000001, 512), new Disk(backend).read(eip, 512));
+		buffered.disableWriteBuffer();
+	}
+
+	/**
+	 * Situation: 时间模型按寻道距离和传输长度累加模拟时间，缓存命中不计时间
+	 */
+	@Test
+	public void test7() {
+		Disk timed = new Disk(new ProceduralDiskBackend(Disk.DISK_SIZE_B));
+		DiskCostModel model = timed.enableCostModel(DiskCostModel.Profile.HDD, DiskCostModel.Mode.SIMULATE);
+		timed.read("00000000000000000000000000000000", 4 * 1024);
+		timed.read("00000000000000000000000000000000", 4 * 1024);
+		timed.read("00000100000000000000000000000000", 4 * 1024);	// 64M处，需要寻道
+		long sequential = model.cost(0, 4 * 1024, 0);
+		long seek = model.cost(64 * 1024 * 1024, 4 * 1024, 4 * 1024);
+		assertEquals(2, model.getTransfers());
+		assertTrue(seek > sequential);
+		assertEquals(sequential + seek, model.getBusyNanos());
+		// 单线程访问时模拟时间就是耗时之和
+		assertEquals(sequential + seek, model.getSimulatedNanos());
+	}
+
+	/**
+	 * Situation: 条带化后端的逻辑布局与单个镜像相同，跨越多个条带的读写按文件拆分后正确拼接
+	 */
+	@Test
+	public void test8() throws Exception {
+		int size = 24 * 1024 * 1024;
+		Path dir = Files.createTempDirectory("striped");
+		String[] paths = {dir.resolve("a").toString(), dir.resolve("b").toString(), dir.resolve("c").toString()};
+		try (StripedDiskBackend striped = new StripedDiskBackend(paths, size, 64 * 1024)) {
+			ProceduralDiskBackend procedural = new ProceduralDiskBackend(size);
+			// 跨越20M处的区间边界
+			byte[] expect = new byte[2 * 1024 * 1024];
+			byte[] actual = new byte[expect.length];
+			procedural.read(19 * 1024 * 1024 + 123, expect, 0, expect.length);
+			striped.read(19 * 1024 * 1024 + 123, actual, 0, actual.length);
+			assertArrayEquals(expect, actual);
+
+			byte[] data = new byte[200001];
+			new Random(2019L).nextBytes(data);
+			striped.write(5 * 1024 * 1024 - 12345, data, 0, data.length);
+			byte[] back = new byte[data.length];
+			striped.read(5 * 1024 * 1024 - 12345, back, 0, back.length);
+			assertArrayEquals(data, back);
+			// 每个文件保存三分之一的条带
+			assertEquals(size / 3, Files.size(dir.resolve("b")));
+		} finally {
+			for (String path : paths) {
+				Files.deleteIfExists(Paths.get(path));
+			}
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Situation: 未命中的读从下层读到旧数据后，写入先完成，读出的旧块不能放入缓存
+	 */
+	@Test
+	public void test9() throws Exception {
+		ProceduralDiskBackend procedural = new ProceduralDiskBackend(Disk.DISK_SIZE_B);
+		CountDownLatch fetched = new CountDownLatch(1);
+		CountDownLatch written = new CountDownLatch(1);
+		Disk racy = new Disk(new DiskBackend() {
+			@Override
+			public long size() {
+				return procedural.size();
+			}
+
+			@Override
+			public void read(long position, byte[] dest, int off, int len) throws IOException {
+				procedural.read(position, dest, off, len);
+				if (fetched.getCount() > 0) {
+					fetched.countDown();
+					try {
+						written.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+
+			@Override
+			public void write(long position, byte[] src, int off, int len) throws IOException {
+				procedural.write(position, src, off, len);
+			}
+		});
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<char[]> stale = executor.submit(() -> racy.read("00000000000000000000000000000000", 128));
+		fetched.await();
+		char[] data = helper.fillData((char)0b00000011, 128);
+		racy.write("00000000000000000000000000000000", 128, data);
+		written.countDown();
+		assertArrayEquals(helper.fillData((char)0b00001111, 128), stale.get());
+		executor.shutdown();
+		assertArrayEquals(data, racy.read("00000000000000000000000000000000", 128));
+	}
+
+	/**
+	 * Situation: 关闭磁盘时刷出写缓冲区中的数据，镜像文件关闭后不能再写入
+	 */
+	@Test
+	public void test10() throws Exception {
+		ProceduralDiskBackend backend = new ProceduralDiskBackend(Disk.DISK_SIZE_B);
+		String eip = "00000101000000000000000000000000";	// 80M处
+		try (Disk buffered = new Disk(backend)) {
+			buffered.enableWriteBuffer(64 * 1024, 0, false);
+			buffered.write(eip, 16, helper.fillData((char)0b00000001, 16));
+		}
+		assertArrayEquals(helper.fillData((char)0b00000001, 16), new Disk(backend).read(eip, 16));
+
+		Path image = Files.createTempFile("disk", ".vdev");
+		Files.delete(image);
+		try {
+			FileDiskBackend file = new FileDiskBackend(image.toString(), 1024 * 1024);
+			new Disk(file).close();
+			try {
+				file.write(0, new byte[1], 0, 1);
+				fail();
+			} catch (IOException e) {
+				// 已关闭
+			}
+		} finally {
+			Files.deleteIfExists(image);
+		}
+	}
+
+	/**
+	 * Situation: 并发写相邻的块，经I/O调度拼接成更少的传输；写合并缓冲区经调度器刷盘
+	 */
+	@Test
+	public void test11() throws Exception {
+		int threads = 8;
+		try (Disk scheduled = new Disk(new ProceduralDiskBackend(Disk.DISK_SIZE_B))) {
+			DiskScheduler scheduler = scheduled.enableScheduler(20 * 1000);
+			CountDownLatch start = new CountDownLatch(1);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				// 80M处开始的第i个4K块
+				String eip = new Transformer().intToBinary(String.valueOf(80 * 1024 * 1024 + i * 4 * 1024));
+				char[] data = helper.fillData((char) i, 4 * 1024);
+				results.add(executor.submit(() -> {
+					start.await();
+					scheduled.write(eip, 4 * 1024, data);
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> result : results) {
+				result.get();
+			}
+			executor.shutdown();
+			assertEquals(threads, scheduler.getRequests());
+			assertTrue(scheduler.getTransfers() < threads);
+			scheduled.resetCache();
+			for (int i = 0; i < threads; i++) {
+				String eip = new Transformer().intToBinary(String.valueOf(80 * 1024 * 1024 + i * 4 * 1024));
+				assertArrayEquals(helper.fillData((char) i, 4 * 1024), scheduled.read(eip, 4 * 1024));
+			}
+
+			scheduled.enableWriteBuffer(64 * 1024, 0, false);
+			scheduler.resetStats();
+			scheduled.write("00000101000000000000000000000000", 16, helper.fillData((char)0b00000001, 16));
+			scheduled.write("00000101000000000001000000000000", 16, helper.fillData((char)0b00000010, 16));
+			scheduled.force();
+			assertEquals(2, scheduler.getRequests());
+			scheduled.disableWriteBuffer();
+			scheduled.resetCache();
+			assertArrayEquals(helper.fillData((char)0b00000001, 16), scheduled.read("00000101000000000000000000000000", 16));
+			assertArrayEquals(helper.fillData((char)0b00000010, 16), scheduled.read("00000101000000000001000000000000", 16));
+		}
+	}
+
+	@After
+	public void after() {
+		// test2会写磁盘
+		disk.write("00000000000000000000000000000000", 128, helper.fillData((char)0b00001111, 128));
+		Disk.CACHE_SIZE_B = 4 * 1024 * 1024;
+		disk.resetCache();
+	}
+
+}
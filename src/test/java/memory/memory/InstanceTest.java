@@ -0,0 +1,254 @@
+package memory.memory;
+
+import cpu.MMU;
+import memory.CompressedSwap;
+import memory.EventTrace;
+import memory.Memory;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多个不同配置的内存系统实例在同一个JVM中并发运行
+ */
+public class InstanceTest {
+
+	static MemTestHelper helper = new MemTestHelper();
+
+	@Test
+	public void test1() throws Exception {
+		MMU ps = new MMU(Memory.builder().segment(true).page(true).build());
+		MMU seg = new MMU(Memory.builder().segment(true).memSize(16 * 1024 * 1024).pageSize(4 * 1024).build());
+		ps.getMemory().alloc_seg_force(0, "00000000000000000000000000000000", 1024, false, "");
+		seg.getMemory().alloc_seg_force(0, "00000000000000000000000000000000", 9 * 1024 * 1024, false, "00000001010000000000000000000000");
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		Future<char[]> psData = executor.submit(() -> ps.read("000000000000000000000000000000000000000000000000", 2048));
+		Future<char[]> segData = executor.submit(() -> seg.read("000000000000000000000000000000000000000000000000", 9 * 1024 * 1024));
+		assertArrayEquals(helper.fillData((char)0b00001111, 2048), psData.get());
+		assertArrayEquals(helper.fillData((char)0b00000011, 9 * 1024 * 1024), segData.get());
+		executor.shutdown();
+
+		assertEquals(2, ps.getMemory().getTotalPageFaults());
+		assertEquals(1, seg.getMemory().getTotalSegmentFaults());
+		assertEquals(4 * 1024, seg.getMemory().getPageSize());
+		// 构造出的实例不受默认实例静态开关的影响
+		assertFalse(seg.getMemory().isPage());
+		ps.getMemory().close();
+		seg.getMemory().close();
+	}
+
+	/**
+	 * Situation: 空闲页框低于低水位时由后台线程换出，直到高于高水位
+	 */
+	@Test
+	public void test2() throws Exception {
+		double low = Memory.RECLAIM_LOW_WATERMARK;
+		double high = Memory.RECLAIM_HIGH_WATERMARK;
+		Memory.RECLAIM_LOW_WATERMARK = 0.25;
+		Memory.RECLAIM_HIGH_WATERMARK = 0.5;
+		Memory memory = Memory.builder().segment(true).page(true).memSize(64 * 1024).build();
+		MMU ps = new MMU(memory);
+		try {
+			memory.alloc_seg_force(0, "00000000000000000000000000000000", 64 * 1024, false, "");
+			memory.startReclaimer();
+			// 64个页框中读入60页，空闲页框低于16个
+			assertArrayEquals(helper.fillData((char)0b00001111, 60 * 1024), ps.read("000000000000000000000000000000000000000000000000", 60 * 1024));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (memory.getFreeFrames() < 32 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(memory.getFreeFrames() >= 32);
+			assertTrue(memory.getBackgroundReclaims() >= 28);
+			assertEquals(0, memory.getDirectReclaims());
+		} finally {
+			memory.close();
+			Memory.RECLAIM_LOW_WATERMARK = low;
+			Memory.RECLAIM_HIGH_WATERMARK = high;
+		}
+	}
+
+	/**
+	 * Situation: 换出的页压缩后留在交换层，再次缺页时从交换层解压，不读磁盘
+	 */
+	@Test
+	public void test3() {
+		try (Memory memory = Memory.builder().segment(true).page(true).memSize(8 * 1024).build()) {
+			MMU ps = new MMU(memory);
+			CompressedSwap swap = memory.enableSwap(64 * 1024);
+			memory.alloc_seg_force(0, "00000000000000000000000000000000", 16 * 1024, false, "");
+			// 8个页框读入16页，前8页被换出到交换层
+			assertArrayEquals(helper.fillData((char)0b00001111, 16 * 1024), ps.read("000000000000000000000000000000000000000000000000", 16 * 1024));
+			assertEquals(8, swap.getStores());
+			assertEquals(8, swap.size());
+			assertTrue(swap.getCompressionRatio() > 100);
+
+			long bytesRead = memory.getDisk().getBytesRead();
+			long faults = memory.getTotalPageFaults();
+			assertArrayEquals(helper.fillData((char)0b00001111, 4 * 1024), ps.read("000000000000000000000000000000000000000000000000", 4 * 1024));
+			assertEquals(faults + 4, memory.getTotalPageFaults());
+			assertEquals(4, swap.getHits());
+			assertEquals(bytesRead, memory.getDisk().getBytesRead());
+			// 命中的项被取出，再次换出的4页放入交换层
+			assertEquals(8, swap.size());
+
+			// 磁盘写入使交换层中对应的页过期
+			memory.getDisk().write("00000000000000000001000000000000", 1, new char[]{1});
+			assertEquals(7, swap.size());
+		}
+	}
+
+	/**
+	 * Situation: 开启事件跟踪后记录缺页、换出、磁盘读和地址转换，转储后可以读回；缓冲区写满时覆盖最早的记录
+	 */
+	@Test
+	public void test4() throws Exception {
+		try (Memory memory = Memory.builder().segment(true).page(true).memSize(8 * 1024).build()) {
+			MMU ps = new MMU(memory);
+			memory.alloc_seg_force(0, "00000000000000000000000000000000", 16 * 1024, false, "");
+			EventTrace trace = EventTrace.start(1024);
+			try {
+				ps.read("000000000000000000000000000000000000000000000000", 16 * 1024);
+			} finally {
+				EventTrace.stop();
+			}
+			int[] counts = new int[EventTrace.Type.values().length];
+			for (EventTrace.Event event : trace.events()) {
+				counts[event.getType().ordinal()]++;
+				if (event.getType() == EventTrace.Type.PAGE_FAULT) {
+					// 缺页的耗时包括读盘
+					assertTrue(event.getDuration() > 0);
+				}
+			}
+			assertEquals(16, counts[EventTrace.Type.PAGE_FAULT.ordinal()]);
+			assertEquals(8, counts[EventTrace.Type.EVICT_FRAME.ordinal()]);
+			assertEquals(1, counts[EventTrace.Type.TRANSLATE.ordinal()]);
+			assertTrue(counts[EventTrace.Type.DISK_READ.ordinal()] >= 1);
+
+			Path file = Files.createTempFile("trace", ".bin");
+			try {
+				assertEquals(trace.events().size(), trace.dump(file));
+				assertEquals(trace.events().size(), EventTrace.read(file).size());
+			} finally {
+				Files.delete(file);
+			}
+
+			EventTrace small = EventTrace.start(4);
+			for (int i = 0; i < 10; i++) {
+				EventTrace.emit(EventTrace.Type.PAGE_FAULT, 0, i, i, 0L);
+			}
+			EventTrace.stop();
+			// 关闭后不再记录
+			EventTrace.emit(EventTrace.Type.PAGE_FAULT, 0, 10, 10, 0L);
+			assertEquals(6, small.getDropped());
+			assertEquals(4, small.events().size());
+			assertEquals(6, small.events().get(0).getA());
+		}
+	}
+
+	/**
+	 * Situation: 主存和磁盘超过2G，实模式下按32位偏移访问2G以上的地址；主存只为访问到的块分配
+	 */
+	@Test
+	public void test5() {
+		try (Memory memory = Memory.builder().memSize(3L * 1024 * 1024 * 1024).diskSize(4L * 1024 * 1024 * 1024).build()) {
+			MMU real = new MMU(memory);
+			// 偏移0xA0000000，即2.5G
+			String logicAddr = "0000000000000000" + "10100000000000000000000000000000";
+			char[] expected = new char[1024];
+			memory.getDisk().read(0xA0000000L, 1024, expected, 0);
+			assertArrayEquals(expected, real.read(logicAddr, 1024));
+
+			real.write(logicAddr, 4, new char[]{1, 2, 3, 4});
+			char[] data = real.read(logicAddr, 4);
+			assertArrayEquals(new char[]{1, 2, 3, 4}, data);
+			assertEquals(3L * 1024 * 1024 * 1024, memory.getMemSize());
+			assertTrue(memory.getAllocatedBytes() <= 2 * 1024 * 1024);
+		}
+	}
+
+	/**
+	 * Situation: 32G主存的段页式实例，反向页表和页框位图与主存一样只为用到的页框分配
+	 */
+	@Test
+	public void test6() {
+		try (Memory memory = Memory.builder().segment(true).page(true).memSize(32L * 1024 * 1024 * 1024).build()) {
+			MMU ps = new MMU(memory);
+			assertEquals(0, memory.getAllocatedBytes());
+			assertTrue(memory.getFrameTableBytes() <= 64 * 1024);
+			memory.alloc_seg_force(0, "00000000000000000000000000000000", 16 * 1024, false, "");
+			assertArrayEquals(helper.fillData((char)0b00001111, 16 * 1024), ps.read("000000000000000000000000000000000000000000000000", 16 * 1024));
+			assertEquals(1024 * 1024, memory.getAllocatedBytes());
+			assertTrue(memory.getFrameTableBytes() <= 64 * 1024);
+		}
+	}
+
+	/**
+	 * Situation: 被写入过的页即使内容与其他页相同也不参与去重，换出时不进入压缩交换层
+	 */
+	@Test
+	public void test7() {
+		try (Memory memory = Memory.builder().segment(true).page(true).memSize(8 * 1024).build()) {
+			MMU ps = new MMU(memory);
+			CompressedSwap swap = memory.enableSwap(64 * 1024);
+			memory.alloc_seg_force(0, "00000000000000000000000000000000", 16 * 1024, false, "");
+			assertArrayEquals(helper.fillData((char)0b00001111, 2 * 1024), ps.read("000000000000000000000000000000000000000000000000", 2 * 1024));
+			// 第1页写入与原内容相同的数据，页已修改但内容仍与第0页相同
+			ps.write("000000000000000000000000000000000000010000000000", 16, helper.fillData((char)0b00001111, 16));
+			assertEquals(0, memory.dedupFrames());
+
+			// 读入之后的8页，第0、1页被换出
+			assertArrayEquals(helper.fillData((char)0b00001111, 8 * 1024), ps.read("000000000000000000000000000000000000100000000000", 8 * 1024));
+			char[] page = new char[1024];
+			assertFalse(swap.get(1024, 1024, page, 0));
+			assertTrue(swap.get(0, 1024, page, 0));
+		}
+	}
+
+	/**
+	 * Situation: 多个生产者在很小的缓冲区上反复覆盖同一批槽位，读到的每条记录的字段都来自同一个生产者
+	 */
+	@Test
+	public void test8() throws Exception {
+		int threads = 8;
+		EventTrace trace = EventTrace.start(4);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> producers = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				final int id = i;
+				producers.add(executor.submit(() -> {
+					for (int n = 0; n < 100000; n++) {
+						EventTrace.emit(EventTrace.Type.DISK_READ, id, id, id, 0L);
+					}
+				}));
+			}
+			while (!producers.stream().allMatch(Future::isDone)) {
+				for (EventTrace.Event event : trace.events()) {
+					assertEquals(event.getSegNO(), event.getA());
+					assertEquals(event.getSegNO(), event.getB());
+				}
+			}
+			for (Future<?> producer : producers) {
+				producer.get();
+			}
+		} finally {
+			EventTrace.stop();
+			executor.shutdown();
+		}
+		assertEquals(threads * 100000L, trace.getEmitted());
+		assertEquals(4, trace.events().size());
+	}
+
+}
@@ -1,12 +1,20 @@
 package memory.memory;
 
 import cpu.MMU;
+import memory.Disk;
+import memory.DiskCostModel;
 import memory.Memory;
+import memory.ProceduralDiskBackend;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import transformer.Transformer;
+
+import java.util.Iterator;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * 段页式内存管理模式下读数据，需要逻辑地址转线性地址再转物理地址
@@ -112,6 +120,218 @@ public class PSTest {
 	}
 
 
+	/**
+	 * Situation: 频繁缺页的段增加页框配额
+	 */
+	@Test
+	public void test5() {
+		int len = 64 * 1024;
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", 2 * 1024, false, "");
+		assertArrayEquals(helper.fillData((char)0b00001111, len), mmu.read("000000000000000000000000000000000000000000000000", len));
+		assertEquals(64, memory.getPageFaults(0));
+		assertTrue(memory.getFrameQuota(0) > 1);
+		assertEquals(64, memory.getResidentFrames(0));
+		// 重复读取已加载的页不再缺页
+		mmu.read("000000000000000000000000000000000000000000000000", 1024);
+		assertEquals(64, memory.getPageFaults(0));
+	}
+
+	/**
+	 * Situation: 流式读取长区间，逐页返回并释放已消费的页
+	 */
+	@Test
+	public void test6() {
+		int len = 1025 * 1024;
+		memory.alloc_seg_force(0, "00000001101000000000000000000000", 16 * 1024 * 1024 / 2, false, "");
+		Iterator<char[]> slices = mmu.readStream("000000000000000000010000000000000000000000000000", len);
+		int total = 0;
+		while (slices.hasNext()) {
+			char[] slice = slices.next();
+			assertEquals(Math.min(1024, len - total), slice.length);
+			assertArrayEquals(helper.fillData((char)0b00110011, slice.length), slice);
+			// 已经返回的页立即释放，不占用页框
+			assertEquals(0, memory.getResidentFrames(0));
+			total += slice.length;
+		}
+		assertEquals(len, total);
+		assertEquals(1025, memory.getPageFaults(0));
+	}
+
+	/**
+	 * Situation: 页框分配位图与反向页表一致，段失效后页框全部归还
+	 */
+	@Test
+	public void test7() {
+		int frames = (int) (memory.getMemSize() / memory.getPageSize());
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", 2 * 1024, false, "");
+		assertEquals(frames, memory.getFreeFrames());
+		mmu.read("000000000000000000000000000000000000000000000000", 8 * 1024);
+		assertEquals(8, memory.getResidentFrames(0));
+		assertEquals(frames - 8, memory.getFreeFrames());
+		memory.invalid(0, -1);
+		assertEquals(frames, memory.getFreeFrames());
+	}
+
+	/**
+	 * Situation: 一次读取跨越多个缺失的连续虚页，合并成一次磁盘读
+	 */
+	@Test
+	public void test8() {
+		int len = 16 * 1024;
+		Disk disk = new Disk(new ProceduralDiskBackend(Disk.DISK_SIZE_B));
+		DiskCostModel device = disk.enableCostModel(DiskCostModel.Profile.NVME, DiskCostModel.Mode.SIMULATE);
+		MMU ps = new MMU(Memory.builder().segment(true).page(true).disk(disk).build());
+		ps.getMemory().alloc_seg_force(0, "00000000000000000000000000000000", len, false, "");
+		assertArrayEquals(helper.fillData((char)0b00001111, len), ps.read("000000000000000000000000000000000000000000000000", len));
+		assertEquals(16, ps.getMemory().getPageFaults(0));
+		// 16个连续缺失的页只向设备发出一次读
+		assertEquals(1, device.getTransfers());
+		assertEquals(len, device.getBytes());
+	}
+
+	/**
+	 * Situation: 全0区域的页映射到共享零页框，第一次写入时才分配私有页框
+	 */
+	@Test
+	public void test9() {
+		int len = 4 * 1024;
+		Transformer t = new Transformer();
+		// 80M处开始全为0，虚页号 80 * 1024 放在段内偏移的高20位
+		String logicAddr = "0000000000000000" + t.intToBinary(String.valueOf(80 * 1024 << 12));
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", len, false, "");
+		memory.resetFaultCounters();
+		assertArrayEquals(new char[len], mmu.read(logicAddr, len));
+		assertEquals(4, memory.getPageFaults(0));
+		assertEquals(4, memory.getZeroPageFaults());
+		assertEquals(0, memory.getResidentFrames(0));
+
+		char[] data = helper.fillData((char)0b00000001, 16);
+		mmu.write(logicAddr, 16, data);
+		assertEquals(1, memory.getZeroPageCopies());
+		assertEquals(1, memory.getResidentFrames(0));
+		char[] expect = new char[len];
+		System.arraycopy(data, 0, expect, 0, 16);
+		// 其余的页仍然映射到零页框，内容不受影响
+		assertArrayEquals(expect, mmu.read(logicAddr, len));
+	}
+
+	/**
+	 * Situation: 内容相同的页框合并成一个共享页框，写入时复制出私有页框
+	 */
+	@Test
+	public void test10() {
+		int len = 8 * 1024;
+		String logicAddr = "000000000000000000000000000000000000000000000000";
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", len, false, "");
+		assertArrayEquals(helper.fillData((char)0b00001111, len), mmu.read(logicAddr, len));
+		assertEquals(8, memory.getResidentFrames(0));
+		int free = memory.getFreeFrames();
+
+		assertEquals(7, memory.dedupFrames());
+		assertEquals(7, memory.getFramesSaved());
+		assertEquals(1, memory.getResidentFrames(0));
+		assertEquals(free + 7, memory.getFreeFrames());
+		// 合并后读取不再缺页
+		assertArrayEquals(helper.fillData((char)0b00001111, len), mmu.read(logicAddr, len));
+		assertEquals(8, memory.getPageFaults(0));
+
+		// 写第2页：复制出私有页框，其余页仍然共享
+		char[] data = helper.fillData((char)0b00000001, 16);
+		mmu.write("000000000000000000000000000000000000010000000000", 16, data);
+		assertEquals(6, memory.getFramesSaved());
+		assertEquals(2, memory.getResidentFrames(0));
+		char[] expect = helper.fillData((char)0b00001111, len);
+		System.arraycopy(data, 0, expect, 1024, 16);
+		assertArrayEquals(expect, mmu.read(logicAddr, len));
+	}
+
+	/**
+	 * Situation: 段寄存器装载后复用描述符缓存，段失效后重新装载
+	 */
+	@Test
+	public void test11() {
+		int len = 2 * 1024;
+		String offset = "00000000000000000000000000000000";
+		MMU cpu = new MMU(memory);
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", len, false, "");
+		cpu.loadSegment(MMU.SegmentRegister.ES, "0000000000000000");
+		assertEquals(1, cpu.getDescriptorLoads());
+		assertEquals(len, cpu.getSegmentLimit(MMU.SegmentRegister.ES));
+		assertArrayEquals(helper.fillData((char)0b00001111, len), cpu.read(MMU.SegmentRegister.ES, offset, len));
+		assertArrayEquals(helper.fillData((char)0b00001111, len), cpu.read(MMU.SegmentRegister.ES, offset, len));
+		assertEquals(1, cpu.getDescriptorLoads());
+
+		memory.invalid(0, -1);
+		assertArrayEquals(helper.fillData((char)0b00001111, len), cpu.read(MMU.SegmentRegister.ES, offset, len));
+		assertEquals(2, cpu.getDescriptorLoads());
+
+		// 按逻辑地址访问时选择符装入DS，之后相同选择符的访问不再装载
+		cpu.read("000000000000000000000000000000000000000000000000", len);
+		cpu.read("000000000000000000000000000000000000000000000000", len);
+		assertEquals(3, cpu.getDescriptorLoads());
+	}
+
+	/**
+	 * Situation: 连续缺失的虚页一次分配连续的页框，跳过零散的空闲页框，整段直接读入主存
+	 */
+	@Test
+	public void test12() {
+		try (Memory small = Memory.builder().segment(true).page(true).memSize(16 * 1024).build()) {
+			small.alloc_seg_force(0, "00000000000000000000000000000000", 64 * 1024, false, "");
+			int[] frames = new int[8];
+			assertEquals(8, small.loadPages(0, 0, 8, frames));
+			assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6, 7}, frames);
+			// 空出两个不相邻的页框
+			small.releasePage(1);
+			small.releasePage(3);
+
+			DiskCostModel device = small.getDisk().enableCostModel(DiskCostModel.Profile.NVME, DiskCostModel.Mode.SIMULATE);
+			frames = new int[4];
+			assertEquals(4, small.loadPages(0, 8, 4, frames));
+			assertArrayEquals(new int[]{8, 9, 10, 11}, frames);
+			assertEquals(1, device.getTransfers());
+			assertArrayEquals(helper.fillData((char)0b00001111, 4 * 1024), small.read(8 * 1024L, 4 * 1024));
+			assertEquals(16 - 10, small.getFreeFrames());
+		}
+	}
+
+	/**
+	 * Situation: 零页框占用一个页框后，一次读取需要的页框数等于主存页框数，本次加载的页框全部被占用时分两批加载
+	 */
+	@Test
+	public void test13() {
+		try (Memory tiny = Memory.builder().segment(true).page(true).memSize(8 * 1024).build()) {
+			MMU ps = new MMU(tiny);
+			Transformer t = new Transformer();
+			// 80M处开始全为0，虚页号 80 * 1024 放在段内偏移的高20位
+			String zeroAddr = "0000000000000000" + t.intToBinary(String.valueOf(80 * 1024 << 12));
+			tiny.alloc_seg_force(0, "00000000000000000000000000000000", (80 * 1024 << 12) + 4 * 1024, false, "");
+			assertArrayEquals(new char[1024], ps.read(zeroAddr, 1024));
+			assertEquals(1, tiny.getZeroPageFaults());
+
+			assertArrayEquals(helper.fillData((char)0b00001111, 8 * 1024), ps.read("000000000000000000000000000000000000000000000000", 8 * 1024));
+			assertEquals(7, tiny.getResidentFrames(0));
+		}
+	}
+
+	/**
+	 * Situation: 单页缺页只占用一个页框，之后的多页读取紧接着取得连续的页框
+	 */
+	@Test
+	public void test14() {
+		try (Memory small = Memory.builder().segment(true).page(true).memSize(16 * 1024).build()) {
+			small.alloc_seg_force(0, "00000000000000000000000000000000", 64 * 1024, false, "");
+			int[] frames = new int[1];
+			assertEquals(1, small.loadPages(0, 0, 1, frames));
+			assertEquals(0, frames[0]);
+			assertEquals(15, small.getFreeFrames());
+			frames = new int[4];
+			assertEquals(4, small.loadPages(0, 1, 4, frames));
+			assertArrayEquals(new int[]{1, 2, 3, 4}, frames);
+			assertEquals(11, small.getFreeFrames());
+		}
+	}
+
 	@After
 	public void after() {
 		helper.clearAll();
@@ -47,6 +47,19 @@ public class RealTest {
 		assertArrayEquals(data, mmu.read("000000000000000000000000000000000000000000000000", len));
 	}
 
+	/**
+	 * Situation: 已加载的块直接从内存读取，不再访问磁盘
+	 */
+	@Test
+	public void test3() {
+		int len = 128;
+		char[] data = helper.fillData((char)0b00001111, len);
+		long loads = memory.getRealChunkLoads();
+		assertArrayEquals(data, mmu.read("000000000000000000000000000000000000000000000000", len));
+		assertArrayEquals(data, mmu.read("000000000000000000000000000000000000000010000000", len));
+		assertEquals(loads + 1, memory.getRealChunkLoads());
+	}
+
 	@After
 	public void after() {
 		// test2会写磁盘
@@ -1,12 +1,18 @@
 package memory.memory;
 
 import cpu.MMU;
+import memory.DiskCostModel;
 import memory.Memory;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import transformer.Transformer;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * 分段模式下读取数据，需要将逻辑地址转线性地址，线性地址等效于物理地址
@@ -50,6 +56,9 @@ public class SegTest {
 		char[] diskData = helper.fillData((char)0b00000011, 5 * 1024 * 1024);
 		memory.alloc_seg_force(4, "00000000000000000000000000000000", 5 * 1024 * 1024, false, "00000001010000000000000000000000"); // 重新将数据加载到内存时，段表中的基地址会重新分配
 		assertArrayEquals(diskData, mmu.read("000000000010000000000000000000000000000000000000", 5 * 1024 * 1024));
+		// 最久未访问的是段3
+		assertFalse(memory.getSegDescriptor(3).isValidBit());
+		assertTrue(memory.getSegDescriptor(0).isValidBit());
 	}
 
 	/**
@@ -84,6 +93,120 @@ public class SegTest {
 		assertArrayEquals(diskData, mmu.read("000000000010000000000000000000000000000000000000", 5 * 1024 * 1024));
 	}
 
+	/**
+	 * Situation: 按需分块加载，只加载访问到的块
+	 */
+	@Test
+	public void test5() {
+		Memory.LAZY_SEGMENT_LOAD = true;
+		Memory.BACKGROUND_SEGMENT_FILL = false;
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", 9 * 1024 * 1024, false, "00000001010000000000000000000000");
+		assertArrayEquals(helper.fillData((char)0b00000011, 77), mmu.read("000000000000000000000000000000000000000000000000", 77));
+		assertEquals(Memory.SEG_CHUNK_SIZE_B, memory.getResidentBytes(0));
+		// 段内偏移5M
+		assertArrayEquals(helper.fillData((char)0b00000011, 128), mmu.read("000000000000000000000000010100000000000000000000", 128));
+		assertEquals(2 * Memory.SEG_CHUNK_SIZE_B, memory.getResidentBytes(0));
+	}
+
+	/**
+	 * Situation: 预热，段描述符装入后由后台线程读入整段，第一次读取不再缺段；段失效后重新排队预热
+	 */
+	@Test
+	public void test6() throws Exception {
+		Memory.PROACTIVE_SEGMENT_LOAD = true;
+		long faults = memory.getTotalSegmentFaults();
+		long warmed = memory.getWarmedSegments();
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", 9 * 1024 * 1024, false, "00000001010000000000000000000000");
+		awaitResident(0, 9 * 1024 * 1024);
+		assertEquals(warmed + 1, memory.getWarmedSegments());
+		assertArrayEquals(helper.fillData((char)0b00000011, 128), mmu.read("000000000000000000000000010100000000000000000000", 128));
+		assertEquals(faults, memory.getTotalSegmentFaults());
+
+		memory.invalid(0, -1);
+		awaitResident(0, 9 * 1024 * 1024);
+		assertEquals(warmed + 2, memory.getWarmedSegments());
+		assertEquals(faults, memory.getTotalSegmentFaults());
+	}
+
+	/**
+	 * Situation: 大段并行加载时调用线程被中断，段不置有效位，中断状态保留；之后重新加载
+	 */
+	@Test
+	public void test7() {
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", 9 * 1024 * 1024, false, "00000001010000000000000000000000");
+		Thread.currentThread().interrupt();
+		try {
+			mmu.read("000000000000000000000000000000000000000000000000", 1);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof InterruptedException);
+		}
+		assertTrue(Thread.interrupted());
+		assertEquals(0, memory.getResidentBytes(0));
+		assertArrayEquals(helper.fillData((char)0b00000011, 9 * 1024 * 1024), mmu.read("000000000000000000000000000000000000000000000000", 9 * 1024 * 1024));
+	}
+
+	/**
+	 * Situation: 开启预热、关闭分块加载，段装入后预热还没开始(补齐线程在预热另一个段)就读取
+	 * 读取只读入访问到的块，不等待整个段从(按HDD耗时休眠的)磁盘读入，其余的块由预热补齐
+	 */
+	@Test
+	public void test8() throws Exception {
+		Memory.PROACTIVE_SEGMENT_LOAD = true;
+		try (Memory instance = Memory.builder().segment(true).build()) {
+			instance.getDisk().enableCostModel(DiskCostModel.Profile.HDD, DiskCostModel.Mode.SLEEP);
+			MMU seg = new MMU(instance);
+			// 段0的预热占住补齐线程，保证段1的预热排在读取之后
+			instance.alloc_seg_force(0, "00000000000000000000000000000000", 9 * 1024 * 1024, false, "00000000000000000000000000000000");
+			instance.alloc_seg_force(1, "00000000000000000000000000000000", 9 * 1024 * 1024, false, "00000001010000000000000000000000");
+			assertArrayEquals(helper.fillData((char)0b00000011, 128), seg.read("000000000000100000000000000000000000000000000000", 128));
+			assertTrue(instance.getResidentBytes(1) < 9 * 1024 * 1024);
+			instance.getDisk().disableCostModel();
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((instance.getResidentBytes(0) < 9 * 1024 * 1024 || instance.getResidentBytes(1) < 9 * 1024 * 1024) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(9 * 1024 * 1024, instance.getResidentBytes(1));
+			assertArrayEquals(helper.fillData((char)0b00000011, 128), seg.read("000000000000100000000000000000000000000000000000", 128));
+		}
+	}
+
+	/**
+	 * Situation: 段寄存器装载后按缓存的基址和限长访问，段在内存中时不再解码描述符；越过限长的访问被拒绝
+	 */
+	@Test
+	public void test9() {
+		Transformer t = new Transformer();
+		MMU cpu = new MMU(memory);
+		memory.alloc_seg_force(0, "00000000000000000000000000000000", 1024 * 1024, false, "00000001010000000000000000000000");
+		cpu.loadSegment(MMU.SegmentRegister.ES, "0000000000000000");
+		for (int i = 0; i < 8; i++) {
+			assertArrayEquals(helper.fillData((char)0b00000011, 128), cpu.read(MMU.SegmentRegister.ES, t.intToBinary(String.valueOf(i * 64 * 1024)), 128));
+		}
+		// 第一次读取时加载段，基址改变，之后只重新装载一次
+		assertEquals(2, cpu.getDescriptorLoads());
+		try {
+			cpu.read(MMU.SegmentRegister.ES, t.intToBinary(String.valueOf(1024 * 1024 - 64)), 128);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// 超出限长
+		}
+		try {
+			cpu.write("000000000000000000000000000100000000000000000000", 1, new char[]{1});
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// 段内偏移1M等于限长
+		}
+	}
+
+	private void awaitResident(int segNO, int bytes) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (memory.getResidentBytes(segNO) < bytes && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(bytes, memory.getResidentBytes(segNO));
+	}
+
 	/**
 	 * 将内存初始化为8M  4M  空闲4M  8M  8M的状态
 	 * 8 4 -4 8 8	   更新LRU时间戳信息为(1, 2, 3, 0)
@@ -97,14 +220,17 @@ public class SegTest {
 		memory.alloc_seg_force(2, "00000001000000000000000000000000", 8 * 1024 * 1024, true, "00000001000000000000000000000000");
 		memory.alloc_seg_force(3, "00000001100000000000000000000000", 8 * 1024 * 1024, true, "00000001100000000000000000000000");
 		// 更新时间戳
-		memory.read("00000001100000000000000000000000", 8 * 1024 * 1024);	// read seg 3
-		memory.read("00000000000000000000000000000000", 8 * 1024 * 1024);	// read seg 0
-		memory.read("00000000100000000000000000000000", 4 * 1024 * 1024);	// read seg 1
-		memory.read("00000001000000000000000000000000", 8 * 1024 * 1024);	// read seg 2
+		mmu.read("000000000001100000000000000000000000000000000000", 8 * 1024 * 1024);	// read seg 3
+		mmu.read("000000000000000000000000000000000000000000000000", 8 * 1024 * 1024);	// read seg 0
+		mmu.read("000000000000100000000000000000000000000000000000", 4 * 1024 * 1024);	// read seg 1
+		mmu.read("000000000001000000000000000000000000000000000000", 8 * 1024 * 1024);	// read seg 2
 	}
 
 	@After
 	public void after() {
+		Memory.LAZY_SEGMENT_LOAD = false;
+		Memory.BACKGROUND_SEGMENT_FILL = true;
+		Memory.PROACTIVE_SEGMENT_LOAD = false;
 		helper.clearAll();
 	}
 